@@ -0,0 +1,173 @@
+package com.nuride.map;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least recently used cache of boxing results, for routes that get
+ * boxed over and over with the same vertices and range. Install one with
+ * {@link RouteBoxer#setCache(BoxCache)}; a cache can be shared by any number of
+ * RouteBoxers and threads.
+ *
+ * Paths are keyed on their coordinates rounded to 1e-7 degrees (about a
+ * centimetre) together with the range, so paths that differ by less than that
+ * share an entry. Entries hold the boxes as plain coordinates and every hit
+ * hands out fresh LatLngBounds, so callers can modify what they get back
+ * without affecting the cache.
+ *
+ * The cache is bounded by an estimate of the memory its entries take, and
+ * evicts the least recently used entries first.
+ */
+public final class BoxCache {
+
+	// coordinates are rounded to this many units per degree
+	private static final double QUANTUM = 1e7;
+
+	// estimated bytes of bookkeeping per entry on top of its arrays
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private final long maxWeight_;
+	private final LinkedHashMap<Key, double[]> entries_ = new LinkedHashMap<Key, double[]>(16, 0.75f, true);
+	private long weight_;
+	private long hits_;
+	private long misses_;
+	private long evictions_;
+
+	/**
+	 * @param maxBytes roughly how much memory the cached paths and boxes may take
+	 */
+	public BoxCache(long maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("cache size must be positive: " + maxBytes);
+		}
+		this.maxWeight_ = maxBytes;
+	}
+
+	/**
+	 * Key of the vertices start to end - 1 of a path boxed at the given range,
+	 * simplified to the given fraction of it and merged with the given strategy
+	 */
+	static Key key(double[] lats, double[] lngs, int start, int end, double range, double simplify, RouteBoxer.MergeStrategy strategy) {
+		int[] coords = new int[2 * (end - start)];
+		long hash = (Double.doubleToLongBits(range) * 31 + Double.doubleToLongBits(simplify)) * 31 + strategy.ordinal();
+		for (int i = start, j = 0; i < end; i++, j += 2) {
+			coords[j] = (int) Math.round(lats[i] * QUANTUM);
+			coords[j + 1] = (int) Math.round(lngs[i] * QUANTUM);
+			hash = (hash ^ (((long) coords[j] << 32) | (coords[j + 1] & 0xffffffffL))) * 0x9E3779B97F4A7C15L;
+		}
+		return new Key(coords, range, simplify, strategy, hash ^ (hash >>> 29));
+	}
+
+	/**
+	 * @return the boxes stored for a key, four coordinates per box as south, west,
+	 *           north and east, or null if there are none
+	 */
+	synchronized double[] get(Key key) {
+		double[] boxes = entries_.get(key);
+		if (boxes == null) {
+			misses_++;
+		} else {
+			hits_++;
+		}
+		return boxes;
+	}
+
+	/**
+	 * Store the boxes for a key, evicting the least recently used entries as
+	 * needed to stay within bounds. The boxes must not be modified afterwards.
+	 */
+	synchronized void put(Key key, double[] boxes) {
+		long weight = weight(key, boxes);
+		if (weight > maxWeight_) {
+			return;
+		}
+		double[] previous = entries_.put(key, boxes);
+		if (previous != null) {
+			weight_ -= weight(key, previous);
+		}
+		weight_ += weight;
+		for (Iterator<Map.Entry<Key, double[]>> it = entries_.entrySet().iterator(); weight_ > maxWeight_ && it.hasNext(); ) {
+			Map.Entry<Key, double[]> eldest = it.next();
+			weight_ -= weight(eldest.getKey(), eldest.getValue());
+			it.remove();
+			evictions_++;
+		}
+	}
+
+	private static long weight(Key key, double[] boxes) {
+		return ENTRY_OVERHEAD + 4L * key.coords_.length + 8L * boxes.length;
+	}
+
+	public synchronized void clear() {
+		entries_.clear();
+		weight_ = 0;
+	}
+
+	public synchronized int size() {
+		return entries_.size();
+	}
+
+	/**
+	 * @return the estimated number of bytes the entries take
+	 */
+	public synchronized long weight() {
+		return weight_;
+	}
+
+	public synchronized long getHitCount() {
+		return hits_;
+	}
+
+	public synchronized long getMissCount() {
+		return misses_;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions_;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BoxCache[" + entries_.size() + " entries, " + weight_ + " of " + maxWeight_ + " bytes, "
+				+ hits_ + " hits, " + misses_ + " misses, " + evictions_ + " evictions]";
+	}
+
+	/**
+	 * Rounded coordinates of a path, the range it is boxed at, how much it is
+	 * simplified and how its cells are merged
+	 */
+	static final class Key {
+		private final int[] coords_;
+		private final double range_;
+		private final double simplify_;
+		private final RouteBoxer.MergeStrategy strategy_;
+		private final long hash_;
+
+		Key(int[] coords, double range, double simplify, RouteBoxer.MergeStrategy strategy, long hash) {
+			coords_ = coords;
+			range_ = range;
+			simplify_ = simplify;
+			strategy_ = strategy;
+			hash_ = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (hash_ ^ (hash_ >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Key)) return false;
+			Key that = (Key) o;
+			return hash_ == that.hash_
+					&& Double.doubleToLongBits(range_) == Double.doubleToLongBits(that.range_)
+					&& Double.doubleToLongBits(simplify_) == Double.doubleToLongBits(that.simplify_)
+					&& strategy_ == that.strategy_
+					&& Arrays.equals(coords_, that.coords_);
+		}
+	}
+}
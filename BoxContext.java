@@ -0,0 +1,541 @@
+package com.nuride.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.nuride.map.RouteBoxer.LatLng;
+import com.nuride.map.RouteBoxer.LatLngBounds;
+
+/**
+ * Per-call working state of {@link RouteBoxer#box(List, double)}.
+ *
+ * RouteBoxer itself keeps no mutable fields, so one instance can be shared
+ * between threads. Everything a single box() call writes to lives here, and
+ * contexts are recycled through a {@link Pool} so that steady-state calls do
+ * not have to allocate their grid and grid line lists again.
+ */
+final class BoxContext {
+
+	// Grids larger than this many words are dropped on release rather than kept in the pool
+	private static final int MAX_RETAINED_WORDS = 1 << 20;
+
+	// Cells walked from a known or guessed cell of a point before it is located
+	//  another way
+	private static final int SETTLE_STEPS = 4;
+
+	// Coordinates of the path vertices when the caller's input has to be copied
+	//  into separate latitude and longitude arrays
+	double[] lats_ = new double[64];
+	double[] lngs_ = new double[64];
+
+	// Mercator ordinate and longitude in radians of each vertex, which vertices
+	//  to keep and a stack of spans still to check when simplifying the path
+	double[] mercator_ = new double[0];
+	double[] radians_ = new double[0];
+	boolean[] keep_ = new boolean[0];
+	int[] spans_ = new int[0];
+
+	// Bounds of the path vertices, and scratch space for finding them
+	double south_, north_, west_, east_;
+	final double[] bounds_ = new double[4];
+
+	// Scratch point written by the rhumb line calculations
+	final double[] point_ = new double[2];
+
+	// Cells of the grid overlaid on the path, one of the two grids below
+	CellGrid grid_;
+	private final DenseCellGrid dense_ = new DenseCellGrid();
+	private final SparseCellGrid sparse_ = new SparseCellGrid();
+
+	// The marked cells not yet in a box while a cover is made of them, in a grid
+	//  of the same kind as grid_
+	private final DenseCellGrid uncoveredDense_ = new DenseCellGrid();
+	private final SparseCellGrid uncoveredSparse_ = new SparseCellGrid();
+
+	// Latitude coordinate of each vertical grid line, latLines_ of them in use
+	double[] latGrid_ = new double[64];
+	int latLines_;
+
+	// Longitude coordinate of each horizontal grid line, lngLines_ of them in use
+	double[] lngGrid_ = new double[64];
+	int lngLines_;
+
+	// Mercator projection of each line of latitude, found on first use; the
+	//  first latMercatorLines_ are up to date
+	private double[] latMercator_ = new double[64];
+	private int latMercatorLines_;
+
+	// The grid lines through the center of the route bounds, and the spacing in
+	//  degrees of the lines out from them, used to find the cell of a point
+	//  without walking the lines
+	int latCenter_;
+	int lngCenter_;
+	double latStep_;
+	double lngStep_;
+
+	// The cells the path crosses, as x, y pairs, recorded while recordHits_ is
+	//  set so that coarser grids can be derived from them. Cells may repeat.
+	boolean recordHits_;
+	int[] hits_ = new int[0];
+	int hitCount_;
+
+	// Rhumb line bearing of the segment ending at each vertex, NaN until found,
+	//  shared between the ranges of one call; null when not shared
+	double[] bearings_;
+
+	// Bounds that cover the whole route formed by merging cells that
+	//  the route intersects first horizontally, and then vertically
+	final Boxes boxesX_ = new Boxes();
+
+	// Bounds that cover the whole route formed by merging cells that
+	//  the route intersects first vertically, and then horizontally
+	final Boxes boxesY_ = new Boxes();
+
+	// The boxes of the last merge as south, west, north and east, four per box,
+	//  for callers that take them packed
+	double[] packed_ = new double[64];
+
+	// Runs of cells being merged, four ints each: the first and last cell of the
+	//  run, and the first and last row or column it has been merged across
+	int[] run_ = new int[256];
+	int runs_;
+
+	// Position in run_ of the latest run for each span of rows/columns
+	final SpanIndex spansX_ = new SpanIndex();
+	final SpanIndex spansY_ = new SpanIndex();
+
+	/**
+	 * Forget everything written by the previous call
+	 */
+	void reset() {
+		latLines_ = 0;
+		lngLines_ = 0;
+		latMercatorLines_ = 0;
+		hitCount_ = 0;
+		clearBoxes();
+	}
+
+	/**
+	 * Forget the boxes of the previous merge, keeping the grid lines
+	 */
+	void clearBoxes() {
+		boxesX_.clear();
+		boxesY_.clear();
+		spansX_.clear();
+		spansY_.clear();
+	}
+
+	/**
+	 * @return the set of merged boxes that has the fewest elements
+	 */
+	Boxes boxes() {
+		return boxesX_.size() <= boxesY_.size() ? boxesX_ : boxesY_;
+	}
+
+	/**
+	 * Copy the merged boxes into packed_
+	 *
+	 * @return the number of boxes
+	 */
+	int packBoxes() {
+		Boxes boxes = boxes();
+		int n = boxes.size();
+		allocatePacked(n);
+		System.arraycopy(boxes.coords_, 0, packed_, 0, 4 * n);
+		return n;
+	}
+
+	/**
+	 * Make room in packed_ for the given number of boxes
+	 */
+	void allocatePacked(int boxes) {
+		if (packed_.length < 4 * boxes) {
+			packed_ = new double[Math.max(4 * boxes, 2 * packed_.length)];
+		}
+	}
+
+	/**
+	 * Append a run of cells start to end in a single row or column at
+	 *
+	 * @return the position of the run
+	 */
+	int addRun(int start, int end, int at) {
+		if (4 * runs_ == run_.length) {
+			run_ = Arrays.copyOf(run_, 2 * run_.length);
+		}
+		int i = runs_++;
+		run_[4 * i] = start;
+		run_[4 * i + 1] = end;
+		run_[4 * i + 2] = at;
+		run_[4 * i + 3] = at;
+		return i;
+	}
+
+	void addHit(int x, int y) {
+		if (2 * hitCount_ == hits_.length) {
+			hits_ = Arrays.copyOf(hits_, Math.max(256, 2 * hits_.length));
+		}
+		hits_[2 * hitCount_] = x;
+		hits_[2 * hitCount_ + 1] = y;
+		hitCount_++;
+	}
+
+	/**
+	 * Append the cells recorded by another context
+	 */
+	void addHits(BoxContext ctx) {
+		if (2 * (hitCount_ + ctx.hitCount_) > hits_.length) {
+			hits_ = Arrays.copyOf(hits_, Math.max(2 * (hitCount_ + ctx.hitCount_), 2 * hits_.length));
+		}
+		System.arraycopy(ctx.hits_, 0, hits_, 2 * hitCount_, 2 * ctx.hitCount_);
+		hitCount_ += ctx.hitCount_;
+	}
+
+	/**
+	 * Make room in lats_ and lngs_ for the vertices of the current call
+	 */
+	void allocateVertices(int vertices) {
+		if (lats_.length < vertices) {
+			lats_ = new double[Math.max(vertices, 2 * lats_.length)];
+			lngs_ = new double[lats_.length];
+		}
+	}
+
+	void setBounds(double south, double north, double west, double east) {
+		south_ = south;
+		north_ = north;
+		west_ = west;
+		east_ = east;
+	}
+
+	/**
+	 * Make room for simplifying a path of the given number of vertices
+	 */
+	void allocateSimplify(int vertices) {
+		if (keep_.length < vertices) {
+			int size = Math.max(vertices, 2 * keep_.length);
+			mercator_ = new double[size];
+			radians_ = new double[size];
+			keep_ = new boolean[size];
+			spans_ = new int[2 * size];
+		}
+	}
+
+	/**
+	 * Make room for the grid lines of the current call
+	 *
+	 * @param latLines number of lines of latitude
+	 * @param lngLines number of lines of longitude
+	 */
+	void allocateLines(int latLines, int lngLines) {
+		if (latGrid_.length < latLines) {
+			latGrid_ = new double[Math.max(latLines, 2 * latGrid_.length)];
+		}
+		if (lngGrid_.length < lngLines) {
+			lngGrid_ = new double[Math.max(lngLines, 2 * lngGrid_.length)];
+		}
+		latLines_ = latLines;
+		lngLines_ = lngLines;
+		latMercatorLines_ = 0;
+	}
+
+	/**
+	 * @return the Mercator projection of each line of latitude in use
+	 */
+	double[] latMercator() {
+		if (latMercatorLines_ != latLines_) {
+			if (latMercator_.length < latLines_) {
+				latMercator_ = new double[latGrid_.length];
+			}
+			for (int i = 0; i < latLines_; i++) {
+				latMercator_[i] = RouteBoxer.mercator_(latGrid_[i]);
+			}
+			latMercatorLines_ = latLines_;
+		}
+		return latMercator_;
+	}
+
+	/**
+	 * Find the row holding a latitude. One on a grid line is in the row below it.
+	 */
+	int latCell(double lat) {
+		return locate(latGrid_, latLines_, latCenter_, latStep_, lat, true);
+	}
+
+	/**
+	 * Find the row holding a latitude from the row of a nearby one
+	 *
+	 * @param from The row holding the nearby latitude
+	 * @param up Whether the latitude is north of the nearby one
+	 */
+	int latCell(double lat, int from, boolean up) {
+		return cell(latGrid_, latLines_, latCenter_, latStep_, lat, from, up);
+	}
+
+	/**
+	 * Find the column holding a longitude. One on a grid line is in the column
+	 * to its west.
+	 */
+	int lngCell(double lng) {
+		return locate(lngGrid_, lngLines_, lngCenter_, lngStep_, lng, true);
+	}
+
+	/**
+	 * Find the column holding a longitude from the column of a nearby one
+	 *
+	 * @param from The column holding the nearby longitude
+	 * @param up Whether the longitude is east of the nearby one
+	 */
+	int lngCell(double lng, int from, boolean up) {
+		return cell(lngGrid_, lngLines_, lngCenter_, lngStep_, lng, from, up);
+	}
+
+	/**
+	 * Find the cell between two of n grid lines that holds a value, starting
+	 * from cell from and only moving in the direction of the value. The lines
+	 * are walked a few steps first, as consecutive vertices of a path are mostly
+	 * in the same cell or the next one, and a value on a line reached this way is
+	 * placed before the line. A value further away is located from the spacing of
+	 * the lines instead. Either way a value beyond the lines is clamped to the
+	 * first or last cell.
+	 */
+	static int cell(double[] lines, int n, int center, double step, double value, int from, boolean up) {
+		final int last = n - 2;
+		final double first = lines[0];
+		final double v = unwrap(lines, n, value);
+		int x = from;
+		if (up) {
+			for (int steps = 0; x < last && line(lines, x + 1, first) < v; x++) {
+				if (++steps > SETTLE_STEPS) {
+					return Math.max(from, locate(lines, n, center, step, value, true));
+				}
+			}
+		} else {
+			for (int steps = 0; x > 0 && line(lines, x, first) > v; x--) {
+				if (++steps > SETTLE_STEPS) {
+					return Math.min(from, locate(lines, n, center, step, value, false));
+				}
+			}
+		}
+		return x;
+	}
+
+	/**
+	 * Find the cell between two of n grid lines that holds a value. The cell is
+	 * guessed from the spacing of the lines out from the center line and settled
+	 * against the lines themselves, which takes a step or two at most where the
+	 * lines are evenly spaced. Where they are not, as near a pole, a binary
+	 * search of the lines takes over. A value beyond the lines is clamped to the
+	 * first or last cell.
+	 *
+	 * @param below Whether a value on a grid line is in the cell below it rather
+	 *           than the cell above
+	 */
+	static int locate(double[] lines, int n, int center, double step, double value, boolean below) {
+		final int last = n - 2;
+		final double first = lines[0];
+		final double v = unwrap(lines, n, value);
+		int x = (int) Math.max(0, Math.min(last, center + Math.floor((v - line(lines, center, first)) / step)));
+		for (int steps = 0; steps < SETTLE_STEPS; steps++) {
+			if (x > 0 && (below ? line(lines, x, first) >= v : line(lines, x, first) > v)) {
+				x--;
+			} else if (x < last && (below ? line(lines, x + 1, first) < v : line(lines, x + 1, first) <= v)) {
+				x++;
+			} else {
+				return x;
+			}
+		}
+		// The first line above the value, or at or above it if it goes below
+		int lo = 1, hi = n - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (below ? line(lines, mid, first) >= v : line(lines, mid, first) > v) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return Math.max(0, Math.min(last, lo - 1));
+	}
+
+	/**
+	 * Line k of a set whose first line is first. Lines of longitude that have
+	 * wrapped past the antimeridian are taken 360 degrees further east, so that
+	 * the lines always increase.
+	 */
+	private static double line(double[] lines, int k, double first) {
+		final double line = lines[k];
+		return line < first ? line + 360 : line;
+	}
+
+	/**
+	 * A value taken 360 degrees further east if the lines wrap past the
+	 * antimeridian and it is nearer their eastern end than their western one
+	 */
+	private static double unwrap(double[] lines, int n, double value) {
+		final double first = lines[0], last = lines[n - 1];
+		return last < first && value < first && first - value > value - last ? value + 360 : value;
+	}
+
+	/**
+	 * Pick the dense or the sparse grid for the current call, sized and cleared
+	 *
+	 * @param width number of cells along the longitude axis
+	 * @param height number of cells along the latitude axis
+	 * @param sparse whether to use the tiled grid
+	 */
+	void allocateGrid(int width, int height, boolean sparse) {
+		grid_ = sparse ? sparse_ : dense_;
+		grid_.reset(width, height);
+	}
+
+	/**
+	 * @return a copy of the grid, of the same kind, for a cover to unmark the
+	 *         cells of each block it makes in
+	 */
+	CellGrid uncovered() {
+		CellGrid uncovered = grid_ instanceof SparseCellGrid ? uncoveredSparse_ : uncoveredDense_;
+		uncovered.reset(grid_.width(), grid_.height());
+		uncovered.union(grid_);
+		return uncovered;
+	}
+
+	/**
+	 * Take on the grid lines of another context together with an empty sparse
+	 * grid of the same size, so that part of its path can be traced into this
+	 * context and the cells unioned back afterwards. A part of the path only
+	 * touches a part of the grid, so the grid is always sparse, whatever the kind
+	 * of the other context's grid, and tracing in parallel costs memory for the
+	 * cells marked rather than a whole grid per part. The bearings are shared,
+	 * and cells are recorded if the other context records them.
+	 */
+	void mirror(BoxContext ctx) {
+		recordHits_ = ctx.recordHits_;
+		hitCount_ = 0;
+		bearings_ = ctx.bearings_;
+		allocateLines(ctx.latLines_, ctx.lngLines_);
+		latCenter_ = ctx.latCenter_;
+		lngCenter_ = ctx.lngCenter_;
+		latStep_ = ctx.latStep_;
+		lngStep_ = ctx.lngStep_;
+		System.arraycopy(ctx.latGrid_, 0, latGrid_, 0, latLines_);
+		System.arraycopy(ctx.lngGrid_, 0, lngGrid_, 0, lngLines_);
+		allocateGrid(ctx.grid_.width(), ctx.grid_.height(), true);
+	}
+
+	/**
+	 * A list of boxes packed four doubles to a box, as south, west, north and
+	 * east, so that merging cells creates no object per box
+	 */
+	static final class Boxes {
+		double[] coords_ = new double[256];
+		private int size_;
+
+		int size() {
+			return size_;
+		}
+
+		void clear() {
+			size_ = 0;
+		}
+
+		void add(double south, double west, double north, double east) {
+			if (4 * size_ == coords_.length) {
+				coords_ = Arrays.copyOf(coords_, 2 * coords_.length);
+			}
+			int j = 4 * size_++;
+			coords_[j] = south;
+			coords_[j + 1] = west;
+			coords_[j + 2] = north;
+			coords_[j + 3] = east;
+		}
+
+		/**
+		 * @return the boxes as bounds of their own, for callers that want objects
+		 */
+		List<LatLngBounds> toList() {
+			List<LatLngBounds> list = new ArrayList<LatLngBounds>(size_);
+			for (int j = 0; j < 4 * size_; j += 4) {
+				list.add(new LatLngBounds(new LatLng(coords_[j], coords_[j + 1]), new LatLng(coords_[j + 2], coords_[j + 3])));
+			}
+			return list;
+		}
+
+		void trim(int maxWords) {
+			if (coords_.length > maxWords) {
+				coords_ = new double[256];
+			}
+		}
+	}
+
+	/**
+	 * Lock-free pool of contexts. Threads (platform or virtual) take a context for
+	 * the duration of one call and hand it back afterwards. When every slot is
+	 * in use a fresh context is created, and it is simply dropped on release if
+	 * there is no free slot to put it in.
+	 */
+	static final class Pool {
+		private final AtomicReferenceArray<BoxContext> slots_;
+
+		Pool(int size) {
+			slots_ = new AtomicReferenceArray<BoxContext>(size);
+		}
+
+		BoxContext acquire() {
+			int n = slots_.length();
+			int start = probe(n);
+			for (int i = 0; i < n; i++) {
+				int slot = (start + i) % n;
+				BoxContext ctx = slots_.get(slot);
+				if (ctx != null && slots_.compareAndSet(slot, ctx, null)) {
+					return ctx;
+				}
+			}
+			return new BoxContext();
+		}
+
+		void release(BoxContext ctx) {
+			// do not let the pool pin the caller's results or an oversized grid
+			ctx.reset();
+			ctx.dense_.trim(MAX_RETAINED_WORDS);
+			ctx.sparse_.trim(MAX_RETAINED_WORDS);
+			ctx.uncoveredDense_.trim(MAX_RETAINED_WORDS);
+			ctx.uncoveredSparse_.trim(MAX_RETAINED_WORDS);
+			ctx.grid_ = null;
+			ctx.recordHits_ = false;
+			ctx.bearings_ = null;
+			if (ctx.hits_.length > MAX_RETAINED_WORDS) {
+				ctx.hits_ = new int[0];
+			}
+			if (ctx.packed_.length > MAX_RETAINED_WORDS) {
+				ctx.packed_ = new double[64];
+			}
+			ctx.boxesX_.trim(MAX_RETAINED_WORDS);
+			ctx.boxesY_.trim(MAX_RETAINED_WORDS);
+			if (ctx.lats_.length > MAX_RETAINED_WORDS) {
+				ctx.lats_ = new double[64];
+				ctx.lngs_ = new double[64];
+			}
+			if (ctx.keep_.length > MAX_RETAINED_WORDS) {
+				ctx.mercator_ = new double[0];
+				ctx.radians_ = new double[0];
+				ctx.keep_ = new boolean[0];
+				ctx.spans_ = new int[0];
+			}
+			int n = slots_.length();
+			int start = probe(n);
+			for (int i = 0; i < n; i++) {
+				int slot = (start + i) % n;
+				if (slots_.get(slot) == null && slots_.compareAndSet(slot, null, ctx)) {
+					return;
+				}
+			}
+		}
+
+		private static int probe(int n) {
+			return (System.identityHashCode(Thread.currentThread()) & 0x7fffffff) % n;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.nuride.map;
+
+import java.util.List;
+
+import com.nuride.map.RouteBoxer.LatLngBounds;
+
+/**
+ * The boxes of a route after part of it was replaced, as returned by
+ * {@link RouteBoxer.Plan#replace(int, int, double[], double[], int, int)},
+ * together with the boxes that were added and removed to get there.
+ *
+ * Boxes that were kept are the same objects as before, and every removed box
+ * is one that was returned before, so a downstream index can be patched box by
+ * box, as {@link RouteIndex#update(Object, BoxDelta)} does.
+ */
+public final class BoxDelta {
+
+	private final List<LatLngBounds> boxes_;
+	private final List<LatLngBounds> added_;
+	private final List<LatLngBounds> removed_;
+
+	BoxDelta(List<LatLngBounds> boxes, List<LatLngBounds> added, List<LatLngBounds> removed) {
+		boxes_ = boxes;
+		added_ = added;
+		removed_ = removed;
+	}
+
+	/**
+	 * @return every box of the route as it is now
+	 */
+	public List<LatLngBounds> getBoxes() {
+		return boxes_;
+	}
+
+	/**
+	 * @return the boxes that were not there before
+	 */
+	public List<LatLngBounds> getAdded() {
+		return added_;
+	}
+
+	/**
+	 * @return the boxes that are gone
+	 */
+	public List<LatLngBounds> getRemoved() {
+		return removed_;
+	}
+
+	/**
+	 * @return whether no box was added or removed
+	 */
+	public boolean isEmpty() {
+		return added_.isEmpty() && removed_.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "BoxDelta[" + boxes_.size() + " boxes, " + added_.size() + " added, " + removed_.size() + " removed]";
+	}
+}
@@ -0,0 +1,104 @@
+package com.nuride.map;
+
+/**
+ * The measurements of boxing one path, as passed to a {@link BoxListener}
+ */
+public final class BoxEvent {
+
+	private final int vertices_;
+	private final int gridWidth_;
+	private final int gridHeight_;
+	private final long markedCells_;
+	private final int boxesX_;
+	private final int boxesY_;
+	private final long buildNanos_;
+	private final long traceNanos_;
+	private final long mergeNanos_;
+
+	BoxEvent(int vertices, int gridWidth, int gridHeight, long markedCells, int boxesX, int boxesY,
+			long buildNanos, long traceNanos, long mergeNanos) {
+		vertices_ = vertices;
+		gridWidth_ = gridWidth;
+		gridHeight_ = gridHeight;
+		markedCells_ = markedCells;
+		boxesX_ = boxesX;
+		boxesY_ = boxesY;
+		buildNanos_ = buildNanos;
+		traceNanos_ = traceNanos;
+		mergeNanos_ = mergeNanos;
+	}
+
+	public int getVertices() {
+		return vertices_;
+	}
+
+	/**
+	 * @return the number of cells of the grid along the longitude axis
+	 */
+	public int getGridWidth() {
+		return gridWidth_;
+	}
+
+	/**
+	 * @return the number of cells of the grid along the latitude axis
+	 */
+	public int getGridHeight() {
+		return gridHeight_;
+	}
+
+	/**
+	 * @return the number of cells the path and its neighbourhood cover
+	 */
+	public long getMarkedCells() {
+		return markedCells_;
+	}
+
+	/**
+	 * @return the number of boxes from merging cells a column at a time
+	 */
+	public int getBoxesX() {
+		return boxesX_;
+	}
+
+	/**
+	 * @return the number of boxes from merging cells a row at a time
+	 */
+	public int getBoxesY() {
+		return boxesY_;
+	}
+
+	/**
+	 * @return the number of boxes returned, the smaller of the two sets
+	 */
+	public int getBoxes() {
+		return Math.min(boxesX_, boxesY_);
+	}
+
+	/**
+	 * @return the time taken to lay the grid over the route bounds
+	 */
+	public long getBuildNanos() {
+		return buildNanos_;
+	}
+
+	/**
+	 * @return the time taken to find the cells the path intersects
+	 */
+	public long getTraceNanos() {
+		return traceNanos_;
+	}
+
+	/**
+	 * @return the time taken to merge the marked cells into boxes
+	 */
+	public long getMergeNanos() {
+		return mergeNanos_;
+	}
+
+	@Override
+	public String toString() {
+		return "BoxEvent[" + vertices_ + " vertices, grid " + gridWidth_ + "x" + gridHeight_ + ", "
+				+ markedCells_ + " marked cells, " + boxesX_ + " xboxes, " + boxesY_ + " yboxes, build "
+				+ buildNanos_ + "ns, trace " + traceNanos_ + "ns, merge " + mergeNanos_ + "ns]";
+	}
+}
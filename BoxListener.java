@@ -0,0 +1,26 @@
+package com.nuride.map;
+
+/**
+ * Receives the measurements of every path a {@link RouteBoxer} boxes. Install
+ * one with {@link RouteBoxer#setListener(BoxListener)}; with none installed
+ * nothing is timed or counted at all.
+ *
+ * Listeners are called on the thread that boxed the path, which may be any
+ * thread, so they must be thread-safe and should return quickly.
+ */
+public interface BoxListener {
+
+	/**
+	 * A listener that ignores everything
+	 */
+	BoxListener NO_OP = new BoxListener() {
+		@Override
+		public void boxed(BoxEvent event) {
+		}
+	};
+
+	/**
+	 * Called once a path has been boxed, before the boxes are returned
+	 */
+	void boxed(BoxEvent event);
+}
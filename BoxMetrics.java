@@ -0,0 +1,102 @@
+package com.nuride.map;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Listener that aggregates the measurements of every path boxed into named
+ * meters in the style of a metrics registry: a timer per phase and summaries of
+ * the grid and box counts, each with a count, a total and a maximum. It keeps
+ * no per-call state, so updates from many threads do not contend.
+ *
+ * {@link #snapshot()} gives the current values keyed by meter name, ready to be
+ * published as gauges or counters through whatever metrics library is in use.
+ */
+public final class BoxMetrics implements BoxListener {
+
+	public static final String BUILD = "routeboxer.phase.build";
+	public static final String TRACE = "routeboxer.phase.trace";
+	public static final String MERGE = "routeboxer.phase.merge";
+	public static final String VERTICES = "routeboxer.vertices";
+	public static final String GRID_CELLS = "routeboxer.grid.cells";
+	public static final String MARKED_CELLS = "routeboxer.grid.marked";
+	public static final String BOXES_X = "routeboxer.boxes.x";
+	public static final String BOXES_Y = "routeboxer.boxes.y";
+	public static final String BOXES = "routeboxer.boxes";
+
+	private final Meter build_ = new Meter();
+	private final Meter trace_ = new Meter();
+	private final Meter merge_ = new Meter();
+	private final Meter vertices_ = new Meter();
+	private final Meter gridCells_ = new Meter();
+	private final Meter markedCells_ = new Meter();
+	private final Meter boxesX_ = new Meter();
+	private final Meter boxesY_ = new Meter();
+	private final Meter boxes_ = new Meter();
+
+	@Override
+	public void boxed(BoxEvent event) {
+		build_.record(event.getBuildNanos());
+		trace_.record(event.getTraceNanos());
+		merge_.record(event.getMergeNanos());
+		vertices_.record(event.getVertices());
+		gridCells_.record((long) event.getGridWidth() * event.getGridHeight());
+		markedCells_.record(event.getMarkedCells());
+		boxesX_.record(event.getBoxesX());
+		boxesY_.record(event.getBoxesY());
+		boxes_.record(event.getBoxes());
+	}
+
+	/**
+	 * @return the number of paths boxed
+	 */
+	public long getCount() {
+		return build_.count_.sum();
+	}
+
+	/**
+	 * @return for every meter its count, total and max, as name.count, name.total
+	 *           and name.max; timers are in nanoseconds
+	 */
+	public Map<String, Long> snapshot() {
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		build_.snapshot(BUILD, values);
+		trace_.snapshot(TRACE, values);
+		merge_.snapshot(MERGE, values);
+		vertices_.snapshot(VERTICES, values);
+		gridCells_.snapshot(GRID_CELLS, values);
+		markedCells_.snapshot(MARKED_CELLS, values);
+		boxesX_.snapshot(BOXES_X, values);
+		boxesY_.snapshot(BOXES_Y, values);
+		boxes_.snapshot(BOXES, values);
+		return values;
+	}
+
+	@Override
+	public String toString() {
+		return "BoxMetrics" + snapshot();
+	}
+
+	/**
+	 * Count, total and maximum of the values recorded
+	 */
+	private static final class Meter {
+		private final LongAdder count_ = new LongAdder();
+		private final LongAdder total_ = new LongAdder();
+		private final LongAccumulator max_ = new LongAccumulator(Math::max, 0);
+
+		void record(long value) {
+			count_.increment();
+			total_.add(value);
+			max_.accumulate(value);
+		}
+
+		void snapshot(String name, Map<String, Long> values) {
+			values.put(name + ".count", count_.sum());
+			values.put(name + ".total", total_.sum());
+			values.put(name + ".max", max_.get());
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package com.nuride.map;
+
+/**
+ * Receives the boxes of a path one at a time as plain coordinates, so that
+ * they can be boxed with {@link RouteBoxer#box(double[], double[], int, int, double, BoxSink)}
+ * and consumed without creating a LatLngBounds, or any other object, per box.
+ *
+ * A sink is called on the thread that boxed the path, before the box() call
+ * returns, and must not keep the boxer waiting long.
+ */
+public interface BoxSink {
+
+	/**
+	 * Called once for each box, in the order box() would return them
+	 */
+	void box(double south, double west, double north, double east);
+}
@@ -0,0 +1,101 @@
+package com.nuride.map;
+
+/**
+ * The cells of the grid overlaid on a path, each either marked for inclusion
+ * in the boxes or not.
+ *
+ * Cells are addressed by column x (along the longitude axis) and row y (along
+ * the latitude axis). The merge passes walk the grid through the run searches
+ * below instead of reading cells one at a time, which lets an implementation
+ * skip empty stretches of the grid wholesale.
+ */
+abstract class CellGrid {
+
+	protected int width_;
+	protected int height_;
+
+	/**
+	 * Size the grid and clear every cell, reusing storage from earlier calls
+	 * where possible
+	 *
+	 * @param width number of cells along the longitude axis
+	 * @param height number of cells along the latitude axis
+	 */
+	abstract void reset(int width, int height);
+
+	/**
+	 * Clear the grid and release storage grown beyond the given number of words
+	 */
+	abstract void trim(int maxWords);
+
+	int width() {
+		return width_;
+	}
+
+	int height() {
+		return height_;
+	}
+
+	abstract boolean isMarked(int x, int y);
+
+	/**
+	 * @return the number of marked cells
+	 */
+	abstract long markedCells();
+
+	/**
+	 * Mark a cell and its 8 immediate neighbours
+	 *
+	 * @param x The column of the cell
+	 * @param y The row of the cell
+	 * @return false if part of the neighbourhood lies off the grid, in which
+	 *           case only the part on the grid is marked
+	 */
+	abstract boolean markNeighbourhood(int x, int y);
+
+	/**
+	 * Unmark every cell of a block, which must lie on the grid
+	 *
+	 * @param x0 The first column of the block
+	 * @param y0 The first row of the block
+	 * @param x1 The last column of the block
+	 * @param y1 The last row of the block
+	 */
+	abstract void clear(int x0, int y0, int x1, int y1);
+
+	/**
+	 * Mark every cell that is marked in another grid of the same size, which is
+	 * either of the same kind or sparse
+	 */
+	abstract void union(CellGrid other);
+
+	/**
+	 * @return the first row at or after y that may hold marked cells, or height()
+	 */
+	abstract int nextRowInUse(int y);
+
+	/**
+	 * @return the first column at or after x that may hold marked cells, or width()
+	 */
+	abstract int nextColumnInUse(int x);
+
+	/**
+	 * @return the first marked column at or after from in row y, or width() if none
+	 */
+	abstract int nextMarkedInRow(int y, int from);
+
+	/**
+	 * @return the first unmarked column at or after from in row y, or width() if none
+	 */
+	abstract int nextUnmarkedInRow(int y, int from);
+
+	/**
+	 * @return the first marked row at or after from in column x, or height() if none
+	 */
+	abstract int nextMarkedInColumn(int x, int from);
+
+	/**
+	 * @return the first unmarked row at or after from in column x, or height() if none
+	 */
+	abstract int nextUnmarkedInColumn(int x, int from);
+}
@@ -0,0 +1,88 @@
+package com.nuride.map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Per-vertex arithmetic over packed arrays of coordinates: the bounds of a path
+ * and the conversion of its vertices to radians and to the Mercator projection.
+ *
+ * This class does the work one vertex at a time. {@link #get()} hands out a
+ * subclass that works a vector of lanes at a time through the incubating
+ * Vector API where the jdk.incubator.vector module is present (run with
+ * --add-modules jdk.incubator.vector), and this class where it is not, or
+ * where the system property com.nuride.map.vector is false. The subclass lives
+ * in the optional vector source directory and is looked up by name, so the
+ * sources here compile without it.
+ */
+class CoordinateKernel {
+
+	private static final Log logger = LogFactory.getLog(CoordinateKernel.class);
+
+	private static final CoordinateKernel INSTANCE = load();
+
+	/**
+	 * @return the kernel to use on this JVM
+	 */
+	static CoordinateKernel get() {
+		return INSTANCE;
+	}
+
+	private static CoordinateKernel load() {
+		if (Boolean.parseBoolean(System.getProperty("com.nuride.map.vector", "true"))) {
+			try {
+				return (CoordinateKernel) Class.forName("com.nuride.map.VectorCoordinateKernel")
+						.getDeclaredConstructor().newInstance();
+			} catch (LinkageError e) {
+				logger.debug("jdk.incubator.vector is not available, using scalar coordinate kernel");
+			} catch (ReflectiveOperationException e) {
+				logger.debug("jdk.incubator.vector is not available, using scalar coordinate kernel");
+			}
+		}
+		return new CoordinateKernel();
+	}
+
+	/**
+	 * Find the bounding box of the vertices start to end - 1, which must be at
+	 *   least one
+	 *
+	 * @param bounds Receives south, north, west and east
+	 */
+	void bounds(double[] lats, double[] lngs, int start, int end, double[] bounds) {
+		double south = lats[start], north = south;
+		double west = lngs[start], east = west;
+		for (int i = start + 1; i < end; i++) {
+			double lat = lats[i], lng = lngs[i];
+			if (lat < south) south = lat; else if (lat > north) north = lat;
+			if (lng < west) west = lng; else if (lng > east) east = lng;
+		}
+		bounds[0] = south;
+		bounds[1] = north;
+		bounds[2] = west;
+		bounds[3] = east;
+	}
+
+	/**
+	 * Convert the degrees start to end - 1 to radians, written from out[offset]
+	 */
+	void radians(double[] degrees, int start, int end, double[] out, int offset) {
+		for (int i = start; i < end; i++) {
+			out[offset + i - start] = RouteBoxer.toRad(degrees[i]);
+		}
+	}
+
+	/**
+	 * Project the latitudes start to end - 1 to Mercator, in radians, written
+	 *   from out[offset]
+	 */
+	void mercator(double[] lats, int start, int end, double[] out, int offset) {
+		for (int i = start; i < end; i++) {
+			out[offset + i - start] = Math.log(Math.tan(Math.PI / 4 + RouteBoxer.toRad(lats[i]) / 2));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName();
+	}
+}
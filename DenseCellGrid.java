@@ -0,0 +1,201 @@
+package com.nuride.map;
+
+import java.util.Arrays;
+
+/**
+ * Cell grid backed by one bit per cell over the whole bounding box of the path.
+ *
+ * Every cell is stored twice: once in row order, where bit x of row y sits in
+ * the words of that row, and once in column order, where bit y of column x sits
+ * in the words of that column. Marking a 3x3 neighbourhood is then a couple of
+ * word masks per row and per column, and both merge passes can skip over empty
+ * stretches of the grid a whole word at a time.
+ */
+final class DenseCellGrid extends CellGrid {
+
+	private long[] rows_ = new long[0];
+	private long[] cols_ = new long[0];
+	private int rowWords_;
+	private int colWords_;
+
+	@Override
+	void reset(int width, int height) {
+		int rowWords = (width + 63) >>> 6;
+		int colWords = (height + 63) >>> 6;
+		long rowSize = (long) rowWords * height;
+		long colSize = (long) colWords * width;
+		if (rowSize > Integer.MAX_VALUE || colSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("grid of " + width + "x" + height + " cells is too large, use a larger range");
+		}
+		rows_ = clear(rows_, (int) rowSize);
+		cols_ = clear(cols_, (int) colSize);
+		width_ = width;
+		height_ = height;
+		rowWords_ = rowWords;
+		colWords_ = colWords;
+	}
+
+	private static long[] clear(long[] bits, int words) {
+		if (bits.length < words) {
+			return new long[words];
+		}
+		Arrays.fill(bits, 0, words, 0L);
+		return bits;
+	}
+
+	@Override
+	void trim(int maxWords) {
+		if (rows_.length > maxWords || cols_.length > maxWords) {
+			rows_ = new long[0];
+			cols_ = new long[0];
+		}
+		width_ = 0;
+		height_ = 0;
+	}
+
+	@Override
+	void union(CellGrid other) {
+		if (other instanceof SparseCellGrid) {
+			((SparseCellGrid) other).unionInto(this);
+			return;
+		}
+		DenseCellGrid that = (DenseCellGrid) other;
+		for (int i = 0, n = rowWords_ * height_; i < n; i++) {
+			rows_[i] |= that.rows_[i];
+		}
+		for (int i = 0, n = colWords_ * width_; i < n; i++) {
+			cols_[i] |= that.cols_[i];
+		}
+	}
+
+	/**
+	 * Mark the cells of one 64x64 tile, given as 64 row words then 64 column words
+	 *
+	 * @param tx the tile column, in units of 64 cells
+	 * @param ty the tile row, in units of 64 cells
+	 */
+	void unionTile(int tx, int ty, long[] words, int offset) {
+		for (int i = 0, row = ty << 6, n = Math.min(64, height_ - row); i < n; i++) {
+			rows_[(row + i) * rowWords_ + tx] |= words[offset + i];
+		}
+		for (int i = 0, col = tx << 6, n = Math.min(64, width_ - col); i < n; i++) {
+			cols_[(col + i) * colWords_ + ty] |= words[offset + 64 + i];
+		}
+	}
+
+	@Override
+	int nextRowInUse(int y) {
+		return Math.min(y, height_);
+	}
+
+	@Override
+	int nextColumnInUse(int x) {
+		return Math.min(x, width_);
+	}
+
+	@Override
+	boolean isMarked(int x, int y) {
+		return (rows_[y * rowWords_ + (x >>> 6)] & (1L << x)) != 0;
+	}
+
+	@Override
+	long markedCells() {
+		long cells = 0;
+		for (int i = 0, n = rowWords_ * height_; i < n; i++) {
+			cells += Long.bitCount(rows_[i]);
+		}
+		return cells;
+	}
+
+	@Override
+	boolean markNeighbourhood(int x, int y) {
+		if (x < 1 || y < 1 || x + 1 >= width_ || y + 1 >= height_) {
+			// Clipped to the grid a cell at a time, which only happens at its edges
+			for (int row = Math.max(y - 1, 0), rowN = Math.min(y + 1, height_ - 1); row <= rowN; row++) {
+				for (int col = Math.max(x - 1, 0), colN = Math.min(x + 1, width_ - 1); col <= colN; col++) {
+					rows_[row * rowWords_ + (col >>> 6)] |= 1L << col;
+					cols_[col * colWords_ + (row >>> 6)] |= 1L << row;
+				}
+			}
+			return false;
+		}
+		for (int row = y - 1; row <= y + 1; row++) {
+			set3(rows_, row * rowWords_, x - 1);
+		}
+		for (int col = x - 1; col <= x + 1; col++) {
+			set3(cols_, col * colWords_, y - 1);
+		}
+		return true;
+	}
+
+	private static void set3(long[] bits, int base, int from) {
+		int word = base + (from >>> 6);
+		int offset = from & 63;
+		bits[word] |= 7L << offset;
+		if (offset > 61) {
+			bits[word + 1] |= 7L >>> (64 - offset);
+		}
+	}
+
+	@Override
+	void clear(int x0, int y0, int x1, int y1) {
+		for (int row = y0; row <= y1; row++) {
+			clearBits(rows_, row * rowWords_, x0, x1);
+		}
+		for (int col = x0; col <= x1; col++) {
+			clearBits(cols_, col * colWords_, y0, y1);
+		}
+	}
+
+	private static void clearBits(long[] bits, int base, int from, int to) {
+		for (int w = from >>> 6, last = to >>> 6; w <= last; w++) {
+			long mask = -1L;
+			if (w == from >>> 6) {
+				mask &= -1L << from;
+			}
+			if (w == last) {
+				mask &= -1L >>> (63 - (to & 63));
+			}
+			bits[base + w] &= ~mask;
+		}
+	}
+
+	@Override
+	int nextMarkedInRow(int y, int from) {
+		return nextBit(rows_, y * rowWords_, rowWords_, width_, from, 0L);
+	}
+
+	@Override
+	int nextUnmarkedInRow(int y, int from) {
+		return nextBit(rows_, y * rowWords_, rowWords_, width_, from, -1L);
+	}
+
+	@Override
+	int nextMarkedInColumn(int x, int from) {
+		return nextBit(cols_, x * colWords_, colWords_, height_, from, 0L);
+	}
+
+	@Override
+	int nextUnmarkedInColumn(int x, int from) {
+		return nextBit(cols_, x * colWords_, colWords_, height_, from, -1L);
+	}
+
+	/**
+	 * Word at a time search for the next set bit (flip == 0) or the next clear
+	 * bit (flip == -1) in one row or column
+	 */
+	private static int nextBit(long[] bits, int base, int words, int length, int from, long flip) {
+		if (from >= length) {
+			return length;
+		}
+		int w = from >>> 6;
+		long word = (bits[base + w] ^ flip) & (-1L << from);
+		while (word == 0) {
+			if (++w == words) {
+				return length;
+			}
+			word = bits[base + w] ^ flip;
+		}
+		return Math.min(length, (w << 6) + Long.numberOfTrailingZeros(word));
+	}
+}
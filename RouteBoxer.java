@@ -1,7 +1,14 @@
 package com.nuride.map;
 
+import java.nio.BufferOverflowException;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -48,22 +55,9 @@ public class RouteBoxer {
 		}
 		
 		public LatLng rhumbDestinationPoint(double brngIn, double dist) {
-		    final double d = dist / R;  // d = angular distance covered on earth's surface
-		    final double lat1 = toRad(this.lat()), lon1 =toRad(this.lng());
-		    final double brng = toRad(brngIn);
-
-		    double lat2 = lat1 + d * Math.cos(brng);
-		    double dLat = lat2 - lat1;
-		    double dPhi = Math.log(Math.tan(lat2 / 2 + Math.PI / 4) / Math.tan(lat1 / 2 + Math.PI / 4));
-		    double q = (Math.abs(dLat) > DOUBLE_FUDGE) ? dLat / dPhi : Math.cos(lat1);
-		    double dLon = d * Math.sin(brng) / q;
-		    // check for going past the pole
-		    if (Math.abs(lat2) > Math.PI / 2) {
-		        lat2 = lat2 > 0 ? Math.PI - lat2 : - (Math.PI - lat2);
-		    }
-		    double lon2 = (lon1 + dLon + Math.PI) % (2 * Math.PI) - Math.PI;
-
-		    return new LatLng(toDeg(lat2), toDeg(lon2));
+			double[] point = new double[2];
+			RouteBoxer.rhumbDestinationPoint(this.lat, this.lng, brngIn, dist, point);
+			return new LatLng(point[0], point[1]);
 		};
 
 		/**
@@ -74,12 +68,7 @@ public class RouteBoxer {
 		 * @return
 		 */
 		public double rhumbBearingTo(LatLng dest) {
-			double dLon = toRad(dest.lng() - this.lng());
-			double dPhi = Math.log(Math.tan(dest.latRad() / (double)2 + Math.PI / (double)4) / Math.tan(this.latRad() / (double)2 + Math.PI / (double)4));
-			if (Math.abs(dLon) > Math.PI) {
-				dLon = dLon > 0 ? -((double)2 * Math.PI - dLon) : ((double)2 * Math.PI + dLon);
-			}
-			return toBrng(Math.atan2(dLon, dPhi));
+			return RouteBoxer.rhumbBearing(this.lat, this.lng, dest.lat, dest.lng);
 		};
 		
 
@@ -97,8 +86,9 @@ public class RouteBoxer {
 	 * minimal LatLngBounds utility class for RouteBoxer needs
 	 * i do not guarantee the extend method in southern hemisphere
 	 *
+	 * Bounds hold no reference to the boxer that made them.
 	 */
-	public class LatLngBounds {
+	public static class LatLngBounds {
 		private LatLng southwest, northeast;
 
 		public LatLngBounds() {
@@ -186,13 +176,96 @@ public class RouteBoxer {
 	}
 
 
-	private int[][] grid_;
-	private List<Double> latGrid_;
-	private List<Double> lngGrid_;
-	private List<LatLngBounds> boxesX_;
-	private List<LatLngBounds> boxesY_;
 	/**
-	 * Creates a new RouteBoxer
+	 * How the grid of cells overlaid on the path is stored
+	 */
+	public enum GridMode {
+		/** One bit per cell over the whole bounding box of the path */
+		DENSE,
+		/** 64x64 cell tiles allocated as the path reaches them, so memory follows
+		 *  the length of the path rather than the area of its bounding box */
+		SPARSE,
+		/** DENSE for small grids, SPARSE once the bounding box holds more than
+		 *  4M cells */
+		AUTO
+	}
+
+	/**
+	 * How the cells a segment crosses between its ends are found
+	 */
+	public enum TraceEngine {
+		/** Walk the rhumb line from the start of the segment to each line of
+		 *  latitude it crosses, with trigonometry at every crossing */
+		RHUMB,
+		/** Interpolate each crossing in Mercator space, where rhumb lines are
+		 *  straight, from the projection of the segment ends and of the lines of
+		 *  latitude. Marks the same cells with arithmetic alone. */
+		MERCATOR
+	}
+
+	/**
+	 * How the marked cells are merged into boxes
+	 */
+	public enum MergeStrategy {
+		/** Every run of marked cells in a column, or in a row, becomes a box, and
+		 *  the smaller of the two sets is returned */
+		GREEDY,
+		/** Runs in consecutive columns, or rows, that span exactly the same cells
+		 *  are stacked into one box, and the smaller of the two sets is returned.
+		 *  Fewer boxes where the route runs along the grid or doubles back, for a
+		 *  little more work, and the same boxes elsewhere. This is not a minimal
+		 *  cover: runs that overlap without lining up stay apart. */
+		STACKED,
+		/** The marked cells are covered with blocks a row, or a column, at a
+		 *  time: the first cell not yet covered is the corner of the block that
+		 *  covers the most cells not yet covered, and the smaller of the two sets
+		 *  is returned. Blocks need not line up with runs and may overlap, so this
+		 *  gives the fewest boxes of the three, for the most work. A plan merges
+		 *  its whole grid again on every change. */
+		COVER
+	}
+
+	// Grids with more cells than this are tiled in GridMode.AUTO
+	private static final long SPARSE_GRID_CELLS = 1L << 22;
+
+	// Scratch state shared by all RouteBoxer instances, one context per call in flight
+	private static final BoxContext.Pool CONTEXTS = new BoxContext.Pool(Math.max(8, 4 * Runtime.getRuntime().availableProcessors()));
+
+	private GridMode gridMode_ = GridMode.AUTO;
+
+	private MergeStrategy mergeStrategy_ = MergeStrategy.GREEDY;
+
+	private TraceEngine traceEngine_ = TraceEngine.RHUMB;
+
+	// Paths with at least this many vertices are traced over the grid in parallel
+	private int parallelThreshold_ = 1 << 16;
+
+	// Results of earlier calls, if caching is enabled
+	private BoxCache cache_;
+
+	// Receives the measurements of every path boxed, if set
+	private BoxListener listener_;
+
+	// Fraction of the range a path may be simplified by before boxing, 0 for none
+	private double simplify_;
+
+	// Whether to dump the grid to System.out after each phase
+	private boolean printGrid_;
+
+	// Fewest vertices worth tracing as a chunk of their own
+	private static final int MIN_CHUNK_VERTICES = 1 << 13;
+
+	// Lines the grid of a plan reaches beyond its route on every side, so that a
+	//  detour can be traced into the same grid
+	private static final int PLAN_MARGIN_LINES = 64;
+
+	// Bounds and projections of whole paths, in SIMD lanes where the JVM has the
+	//  Vector API
+	private static final CoordinateKernel KERNEL = CoordinateKernel.get();
+
+	/**
+	 * Creates a new RouteBoxer. A RouteBoxer holds no per-call state, so a single
+	 * instance may be shared by any number of threads once it is configured.
 	 *
 	 * @constructor
 	 */
@@ -200,6 +273,127 @@ public class RouteBoxer {
 
 	}
 
+	public GridMode getGridMode() {
+		return gridMode_;
+	}
+
+	/**
+	 * Choose how the grid of cells is stored. The boxes are the same either way.
+	 *
+	 * @param gridMode DENSE, SPARSE or AUTO (the default)
+	 */
+	public void setGridMode(GridMode gridMode) {
+		this.gridMode_ = gridMode;
+	}
+
+	public TraceEngine getTraceEngine() {
+		return traceEngine_;
+	}
+
+	/**
+	 * Choose how the cells crossed by each segment are found. The cells are the
+	 *   same either way, barring rounding for a crossing on a grid line.
+	 *
+	 * @param traceEngine RHUMB (the default) or MERCATOR
+	 */
+	public void setTraceEngine(TraceEngine traceEngine) {
+		this.traceEngine_ = traceEngine;
+	}
+
+	public MergeStrategy getMergeStrategy() {
+		return mergeStrategy_;
+	}
+
+	/**
+	 * Choose how marked cells are merged into boxes by the calls that do not
+	 *   name a strategy of their own
+	 *
+	 * @param mergeStrategy GREEDY (the default), STACKED or COVER
+	 */
+	public void setMergeStrategy(MergeStrategy mergeStrategy) {
+		this.mergeStrategy_ = mergeStrategy;
+	}
+
+	public BoxCache getCache() {
+		return cache_;
+	}
+
+	/**
+	 * Serve paths boxed before from a cache. While a cache is set the lists of
+	 *   boxes returned are unmodifiable, though the boxes in them are the caller's
+	 *   own.
+	 *
+	 * @param cache the cache to use, which may be shared with other RouteBoxers,
+	 *           or null to box every path afresh (the default)
+	 */
+	public void setCache(BoxCache cache) {
+		this.cache_ = cache;
+	}
+
+	public BoxListener getListener() {
+		return listener_;
+	}
+
+	/**
+	 * Report the phase timings, grid size, marked cells and box counts of every
+	 *   path boxed. Without a listener (the default) none of it is measured.
+	 *
+	 * @param listener the listener, for example a {@link BoxMetrics}, or null
+	 */
+	public void setListener(BoxListener listener) {
+		this.listener_ = listener;
+	}
+
+	public double getSimplifyTolerance() {
+		return simplify_;
+	}
+
+	/**
+	 * Simplify paths before boxing them, dropping vertices that lie within a
+	 *   tolerance of the path through the others (Douglas-Peucker). The range is
+	 *   widened by the tolerance to make up for it, so the boxes still cover
+	 *   everything within range of the original path, but a dense path has far
+	 *   fewer vertices to trace over the grid.
+	 *
+	 * @param fraction the tolerance as a fraction of the range, such as 0.1, or 0
+	 *           (the default) to box every vertex as given
+	 */
+	public void setSimplifyTolerance(double fraction) {
+		if (!(fraction >= 0)) {
+			throw new IllegalArgumentException("tolerance must not be negative: " + fraction);
+		}
+		this.simplify_ = fraction;
+	}
+
+	public boolean isPrintGrid() {
+		return printGrid_;
+	}
+
+	/**
+	 * Dump the whole grid to System.out after each phase, for debugging only
+	 *
+	 * @param printGrid true to dump the grid, false (the default) not to
+	 */
+	public void setPrintGrid(boolean printGrid) {
+		this.printGrid_ = printGrid;
+	}
+
+	public int getParallelThreshold() {
+		return parallelThreshold_;
+	}
+
+	/**
+	 * Set the number of vertices from which a single path is split into chunks
+	 *   that are traced over the grid concurrently. The boxes are the same either
+	 *   way.
+	 *
+	 * @param parallelThreshold the vertex count, or Integer.MAX_VALUE to always
+	 *           trace on the calling thread
+	 */
+	public void setParallelThreshold(int parallelThreshold) {
+		this.parallelThreshold_ = parallelThreshold;
+	}
+
 
 	/**
 	 * Generates boxes for a given route and distance
@@ -213,88 +407,1540 @@ public class RouteBoxer {
 	 *           path.
 	 */
 	public List<LatLngBounds> box(List<LatLng> path, double range) {
-		// Two dimensional array representing the cells in the grid overlaid on the path
-		this.grid_ = null;
+		return box(path, range, this.mergeStrategy_);
+	}
 
-		// Array that holds the latitude coordinate of each vertical grid line
-		this.latGrid_ =  new ArrayList<Double>();
+	/**
+	 * Generates boxes for a given route and distance, merging cells with the
+	 *   given strategy
+	 *
+	 * @param {LatLng[]} path The path along which to create boxes
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @param {MergeStrategy} strategy How to merge the marked cells into boxes
+	 * @return {LatLngBounds[]} An arrayList of boxes that covers the whole
+	 *           path.
+	 */
+	public List<LatLngBounds> box(List<LatLng> path, double range, MergeStrategy strategy) {
+		BoxContext ctx = CONTEXTS.acquire();
+		try {
+			return box(ctx, path, range, strategy);
+		} finally {
+			CONTEXTS.release(ctx);
+		}
+	}
 
-		// Array that holds the longitude coordinate of each horizontal grid line  
-		this.lngGrid_ =  new ArrayList<Double>();
+	/**
+	 * Generates boxes for many routes at once, spread over the common fork/join
+	 *   pool
+	 *
+	 * @param {LatLng[][]} routes The paths to box
+	 * @param {Number} range The distance in kms around each route that the
+	 *           generated boxes must cover.
+	 * @return {LatLngBounds[][]} The boxes of each route, in the order of routes
+	 */
+	public List<List<LatLngBounds>> boxAll(List<? extends List<LatLng>> routes, double range) {
+		return boxAll(routes, range, ForkJoinPool.commonPool());
+	}
 
-		// Array of bounds that cover the whole route formed by merging cells that
-		//  the route intersects first horizontally, and then vertically
-		this.boxesX_ =  new ArrayList<LatLngBounds>();
+	/**
+	 * Generates boxes for many routes at once, spread over the given fork/join
+	 *   pool. Each worker keeps one context for all the routes it boxes, so the
+	 *   grids and buffers are reused from route to route.
+	 *
+	 * @param {LatLng[][]} routes The paths to box
+	 * @param {Number} range The distance in kms around each route that the
+	 *           generated boxes must cover.
+	 * @param {ForkJoinPool} pool The pool to run on
+	 * @return {LatLngBounds[][]} The boxes of each route, in the order of routes
+	 */
+	public List<List<LatLngBounds>> boxAll(List<? extends List<LatLng>> routes, double range, ForkJoinPool pool) {
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		List<LatLngBounds>[] results = new List[routes.size()];
+		// a few batches per worker, so that a worker that draws short routes can
+		//  steal from one that draws long ones
+		int batch = Math.max(1, routes.size() / (8 * pool.getParallelism()));
+		pool.invoke(new BoxAllTask(routes, range, results, 0, routes.size(), batch));
+		return Arrays.asList(results);
+	}
 
-		// Array of bounds that cover the whole route formed by merging cells that
-		//  the route intersects first vertically, and then horizontally
-		this.boxesY_ =  new ArrayList<LatLngBounds>();
+	/**
+	 * Boxes routes from to to - 1, splitting in halves down to batches
+	 */
+	private final class BoxAllTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<? extends List<LatLng>> routes_;
+		private final double range_;
+		private final List<LatLngBounds>[] results_;
+		private final int from_, to_, batch_;
+
+		BoxAllTask(List<? extends List<LatLng>> routes, double range, List<LatLngBounds>[] results, int from, int to, int batch) {
+			routes_ = routes;
+			range_ = range;
+			results_ = results;
+			from_ = from;
+			to_ = to;
+			batch_ = batch;
+		}
 
-		// The array of LatLngs representing the vertices of the path
-		List<LatLng> vertices = null;
+		@Override
+		protected void compute() {
+			if (to_ - from_ > batch_) {
+				int mid = (from_ + to_) >>> 1;
+				invokeAll(new BoxAllTask(routes_, range_, results_, from_, mid, batch_),
+						new BoxAllTask(routes_, range_, results_, mid, to_, batch_));
+				return;
+			}
+			BoxContext ctx = CONTEXTS.acquire();
+			try {
+				for (int i = from_; i < to_; i++) {
+					results_[i] = box(ctx, routes_.get(i), range_, mergeStrategy_);
+				}
+			} finally {
+				CONTEXTS.release(ctx);
+			}
+		}
+	}
 
-		vertices = path;
+	private List<LatLngBounds> box(BoxContext ctx, List<LatLng> path, double range, MergeStrategy strategy) {
+		int n = path.size();
+		ctx.allocateVertices(n);
+		for (int i = 0; i < n; i++) {
+			LatLng latLng = path.get(i);
+			ctx.lats_[i] = latLng.lat;
+			ctx.lngs_[i] = latLng.lng;
+		}
+		return box(ctx, ctx.lats_, ctx.lngs_, 0, n, range, strategy);
+	}
 
-		if(logger.isInfoEnabled()){
-			logger.info(new StringBuilder().append("Rouate Boxer v").append(RouteBoxer.VERSION).append(" will create a route from ")
-					.append(vertices.size()).append(" coordinates - ").append(vertices).toString());
+	/**
+	 * Generates boxes for a route given as separate arrays of latitudes and
+	 *   longitudes, without creating a LatLng per vertex
+	 *
+	 * @param {Number[]} lats The latitude of each vertex of the path
+	 * @param {Number[]} lngs The longitude of each vertex of the path
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @return {LatLngBounds[]} An arrayList of boxes that covers the whole
+	 *           path.
+	 */
+	public List<LatLngBounds> box(double[] lats, double[] lngs, double range) {
+		if (lats.length != lngs.length) {
+			throw new IllegalArgumentException(lats.length + " latitudes but " + lngs.length + " longitudes");
 		}
+		return box(lats, lngs, 0, lats.length, range);
+	}
 
-		// Build the grid that is overlaid on the route
-		this.buildGrid_(vertices, range);
+	/**
+	 * Generates boxes for the vertices offset to offset + length - 1 of a route
+	 *   given as separate arrays of latitudes and longitudes
+	 *
+	 * @param {Number[]} lats The latitude of each vertex of the path
+	 * @param {Number[]} lngs The longitude of each vertex of the path
+	 * @param {Number} offset The first vertex to use
+	 * @param {Number} length The number of vertices to use
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @return {LatLngBounds[]} An arrayList of boxes that covers the whole
+	 *           path.
+	 */
+	public List<LatLngBounds> box(double[] lats, double[] lngs, int offset, int length, double range) {
+		return box(lats, lngs, offset, length, range, this.mergeStrategy_);
+	}
 
-		printGrid("Step 1");
-		// Identify the grid cells that the route intersects
-		this.findIntersectingCells_(vertices);
+	/**
+	 * Generates boxes for the vertices offset to offset + length - 1 of a route
+	 *   given as separate arrays of latitudes and longitudes, merging cells with
+	 *   the given strategy
+	 *
+	 * @param {Number[]} lats The latitude of each vertex of the path
+	 * @param {Number[]} lngs The longitude of each vertex of the path
+	 * @param {Number} offset The first vertex to use
+	 * @param {Number} length The number of vertices to use
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @param {MergeStrategy} strategy How to merge the marked cells into boxes
+	 * @return {LatLngBounds[]} An arrayList of boxes that covers the whole
+	 *           path.
+	 */
+	public List<LatLngBounds> box(double[] lats, double[] lngs, int offset, int length, double range, MergeStrategy strategy) {
+		checkRange_(offset, length, Math.min(lats.length, lngs.length));
+		BoxContext ctx = CONTEXTS.acquire();
+		try {
+			return box(ctx, lats, lngs, offset, offset + length, range, strategy);
+		} finally {
+			CONTEXTS.release(ctx);
+		}
+	}
 
-		if(logger.isInfoEnabled()){
-			printGrid("After findIntersectingCells_");
+	/**
+	 * Generates boxes for a route given as one array of interleaved coordinates
+	 *   lat0, lng0, lat1, lng1, ...
+	 *
+	 * @param {Number[]} latLngs The latitude and longitude of each vertex of the path
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @return {LatLngBounds[]} An arrayList of boxes that covers the whole
+	 *           path.
+	 */
+	public List<LatLngBounds> box(double[] latLngs, double range) {
+		if (latLngs.length % 2 != 0) {
+			throw new IllegalArgumentException("odd number of interleaved coordinates: " + latLngs.length);
 		}
-		// Merge adjacent intersected grid cells (and their neighbours) into two sets
-		//  of bounds, both of which cover them completely
-		this.mergeIntersectingCells_();
+		return box(latLngs, 0, latLngs.length / 2, range);
+	}
 
-		printGrid("After mergeIntersectingCells_");
-		// Return the set of merged bounds that has the fewest elements
-		
+	/**
+	 * Generates boxes for length vertices of a route given as interleaved
+	 *   coordinates, starting with the latitude at latLngs[offset]
+	 *
+	 * @param {Number[]} latLngs The latitude and longitude of each vertex of the path
+	 * @param {Number} offset The index of the latitude of the first vertex to use
+	 * @param {Number} length The number of vertices to use
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @return {LatLngBounds[]} An arrayList of boxes that covers the whole
+	 *           path.
+	 */
+	public List<LatLngBounds> box(double[] latLngs, int offset, int length, double range) {
+		checkRange_(offset, 2 * length, latLngs.length);
+		BoxContext ctx = CONTEXTS.acquire();
+		try {
+			ctx.allocateVertices(length);
+			for (int i = 0, j = offset; i < length; i++, j += 2) {
+				ctx.lats_[i] = latLngs[j];
+				ctx.lngs_[i] = latLngs[j + 1];
+			}
+			return box(ctx, ctx.lats_, ctx.lngs_, 0, length, range, this.mergeStrategy_);
+		} finally {
+			CONTEXTS.release(ctx);
+		}
+	}
+
+	/**
+	 * Generates boxes for length vertices of a route given as interleaved
+	 *   coordinates in a buffer, which may be direct or memory mapped. The
+	 *   buffer's position and limit are left untouched.
+	 *
+	 * @param {DoubleBuffer} latLngs The latitude and longitude of each vertex of the path
+	 * @param {Number} offset The index of the latitude of the first vertex to use
+	 * @param {Number} length The number of vertices to use
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @return {LatLngBounds[]} An arrayList of boxes that covers the whole
+	 *           path.
+	 */
+	public List<LatLngBounds> box(DoubleBuffer latLngs, int offset, int length, double range) {
+		checkRange_(offset, 2 * length, latLngs.limit());
+		BoxContext ctx = CONTEXTS.acquire();
+		try {
+			ctx.allocateVertices(length);
+			for (int i = 0, j = offset; i < length; i++, j += 2) {
+				ctx.lats_[i] = latLngs.get(j);
+				ctx.lngs_[i] = latLngs.get(j + 1);
+			}
+			return box(ctx, ctx.lats_, ctx.lngs_, 0, length, range, this.mergeStrategy_);
+		} finally {
+			CONTEXTS.release(ctx);
+		}
+	}
+
+	/**
+	 * Generates boxes for the vertices offset to offset + length - 1 of a route
+	 *   given as separate arrays of latitudes and longitudes, handing each box to
+	 *   a sink as plain coordinates. No object is created for the boxes, so
+	 *   routes can be boxed one after another without leaving garbage behind.
+	 *
+	 * @param {Number[]} lats The latitude of each vertex of the path
+	 * @param {Number[]} lngs The longitude of each vertex of the path
+	 * @param {Number} offset The first vertex to use
+	 * @param {Number} length The number of vertices to use
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @param {BoxSink} sink Receives each box in turn
+	 * @return {Number} The number of boxes that cover the whole path
+	 */
+	public int box(double[] lats, double[] lngs, int offset, int length, double range, BoxSink sink) {
+		checkRange_(offset, length, Math.min(lats.length, lngs.length));
+		BoxContext ctx = CONTEXTS.acquire();
+		try {
+			int n = this.boxPacked_(ctx, lats, lngs, offset, offset + length, range);
+			emitBoxes_(ctx.packed_, n, sink);
+			return n;
+		} finally {
+			CONTEXTS.release(ctx);
+		}
+	}
+
+	/**
+	 * Generates boxes for length vertices of a route given as interleaved
+	 *   coordinates in a buffer, such as a memory mapped trace, handing each box
+	 *   to a sink as plain coordinates
+	 *
+	 * @param {DoubleBuffer} latLngs The latitude and longitude of each vertex of the path
+	 * @param {Number} offset The index of the latitude of the first vertex to use
+	 * @param {Number} length The number of vertices to use
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @param {BoxSink} sink Receives each box in turn
+	 * @return {Number} The number of boxes that cover the whole path
+	 */
+	public int box(DoubleBuffer latLngs, int offset, int length, double range, BoxSink sink) {
+		checkRange_(offset, 2 * length, latLngs.limit());
+		BoxContext ctx = CONTEXTS.acquire();
+		try {
+			ctx.allocateVertices(length);
+			for (int i = 0, j = offset; i < length; i++, j += 2) {
+				ctx.lats_[i] = latLngs.get(j);
+				ctx.lngs_[i] = latLngs.get(j + 1);
+			}
+			int n = this.boxPacked_(ctx, ctx.lats_, ctx.lngs_, 0, length, range);
+			emitBoxes_(ctx.packed_, n, sink);
+			return n;
+		} finally {
+			CONTEXTS.release(ctx);
+		}
+	}
+
+	/**
+	 * Generates boxes for the vertices offset to offset + length - 1 of a route
+	 *   given as separate arrays of latitudes and longitudes, writing them packed
+	 *   into an array as south, west, north and east, four doubles per box. The
+	 *   boxes are only written if they all fit; otherwise the array is left as it
+	 *   was, and the number returned tells how much room to make before boxing
+	 *   again.
+	 *
+	 * @param {Number[]} lats The latitude of each vertex of the path
+	 * @param {Number[]} lngs The longitude of each vertex of the path
+	 * @param {Number} offset The first vertex to use
+	 * @param {Number} length The number of vertices to use
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @param {Number[]} boxes Receives the boxes
+	 * @param {Number} boxesOffset The index in boxes of the south of the first box
+	 * @return {Number} The number of boxes that cover the whole path
+	 */
+	public int box(double[] lats, double[] lngs, int offset, int length, double range, double[] boxes, int boxesOffset) {
+		checkRange_(offset, length, Math.min(lats.length, lngs.length));
+		checkRange_(boxesOffset, 0, boxes.length);
+		BoxContext ctx = CONTEXTS.acquire();
+		try {
+			int n = this.boxPacked_(ctx, lats, lngs, offset, offset + length, range);
+			if (4 * n <= boxes.length - boxesOffset) {
+				System.arraycopy(ctx.packed_, 0, boxes, boxesOffset, 4 * n);
+			}
+			return n;
+		} finally {
+			CONTEXTS.release(ctx);
+		}
+	}
+
+	/**
+	 * Generates boxes for the vertices offset to offset + length - 1 of a route
+	 *   given as separate arrays of latitudes and longitudes, putting them packed
+	 *   into a buffer as south, west, north and east, four doubles per box, from
+	 *   its position on
+	 *
+	 * @param {Number[]} lats The latitude of each vertex of the path
+	 * @param {Number[]} lngs The longitude of each vertex of the path
+	 * @param {Number} offset The first vertex to use
+	 * @param {Number} length The number of vertices to use
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @param {DoubleBuffer} boxes Receives the boxes; its position is advanced
+	 *           past them
+	 * @return {Number} The number of boxes that cover the whole path
+	 * @throws BufferOverflowException if the boxes do not fit in the space
+	 *           remaining in the buffer, in which case none are put
+	 */
+	public int box(double[] lats, double[] lngs, int offset, int length, double range, DoubleBuffer boxes) {
+		checkRange_(offset, length, Math.min(lats.length, lngs.length));
+		BoxContext ctx = CONTEXTS.acquire();
+		try {
+			int n = this.boxPacked_(ctx, lats, lngs, offset, offset + length, range);
+			if (boxes.remaining() < 4 * n) {
+				throw new BufferOverflowException();
+			}
+			boxes.put(ctx.packed_, 0, 4 * n);
+			return n;
+		} finally {
+			CONTEXTS.release(ctx);
+		}
+	}
+
+	private static void emitBoxes_(double[] packed, int n, BoxSink sink) {
+		for (int i = 0; i < 4 * n; i += 4) {
+			sink.box(packed[i], packed[i + 1], packed[i + 2], packed[i + 3]);
+		}
+	}
+
+	/**
+	 * Generates boxes for a route given as a Google encoded polyline, decoding it
+	 *   straight into primitive coordinates and finding the route bounds as it goes
+	 *   see https://developers.google.com/maps/documentation/utilities/polylinealgorithm
+	 *
+	 * @param {CharSequence} encodedPolyline The path, encoded with 5 decimal places
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @return {LatLngBounds[]} An arrayList of boxes that covers the whole
+	 *           path.
+	 */
+	public List<LatLngBounds> box(CharSequence encodedPolyline, double range) {
+		BoxContext ctx = CONTEXTS.acquire();
+		try {
+			int n = decodePolyline_(ctx, encodedPolyline);
+			return boxWithinBounds_(ctx, ctx.lats_, ctx.lngs_, 0, n, range, this.mergeStrategy_);
+		} finally {
+			CONTEXTS.release(ctx);
+		}
+	}
+
+	/**
+	 * Generates boxes for a given route at each of several distances, sharing
+	 *   the work between them. The route bounds are found once. Where a distance
+	 *   is a whole multiple of the smallest one, its cells are derived from the
+	 *   cells the route crosses at the smallest distance instead of tracing the
+	 *   route again. The other distances share the bearing of each segment. The
+	 *   cache is not used.
+	 *
+	 * @param {LatLng[]} path The path along which to create boxes
+	 * @param {Number[]} ranges The distances in kms around the route that the
+	 *           generated boxes must cover.
+	 * @return {LatLngBounds[][]} For each distance in turn, an arrayList of boxes
+	 *           that covers the whole path.
+	 */
+	public List<List<LatLngBounds>> box(List<LatLng> path, double... ranges) {
+		int n = path.size();
+		double[] lats = new double[n];
+		double[] lngs = new double[n];
+		for (int i = 0; i < n; i++) {
+			LatLng latLng = path.get(i);
+			lats[i] = latLng.lat;
+			lngs[i] = latLng.lng;
+		}
+		return box(lats, lngs, 0, n, ranges);
+	}
+
+	/**
+	 * Generates boxes for the vertices offset to offset + length - 1 of a route
+	 *   given as separate arrays of latitudes and longitudes, at each of several
+	 *   distances, sharing the work between them as box(path, ranges) does
+	 *
+	 * @param {Number[]} lats The latitude of each vertex of the path
+	 * @param {Number[]} lngs The longitude of each vertex of the path
+	 * @param {Number} offset The first vertex to use
+	 * @param {Number} length The number of vertices to use
+	 * @param {Number[]} ranges The distances in kms around the route that the
+	 *           generated boxes must cover.
+	 * @return {LatLngBounds[][]} For each distance in turn, an arrayList of boxes
+	 *           that covers the whole path.
+	 */
+	public List<List<LatLngBounds>> box(double[] lats, double[] lngs, int offset, int length, double[] ranges) {
+		checkRange_(offset, length, Math.min(lats.length, lngs.length));
+		if (ranges.length == 0) {
+			throw new IllegalArgumentException("no ranges");
+		}
+		for (double range : ranges) {
+			checkPath_(offset, offset + length, range);
+		}
+		BoxContext ctx = CONTEXTS.acquire();
+		try {
+			return boxRanges_(ctx, lats, lngs, offset, offset + length, ranges);
+		} finally {
+			CONTEXTS.release(ctx);
+		}
+	}
+
+	private List<List<LatLngBounds>> boxRanges_(BoxContext ctx, double[] lats, double[] lngs, int start, int end, double[] ranges) {
+		findBounds_(ctx, lats, lngs, start, end);
+		final double south = ctx.south_, north = ctx.north_, west = ctx.west_, east = ctx.east_;
+
+		int finest = 0;
+		for (int r = 1; r < ranges.length; r++) {
+			if (ranges[r] < ranges[finest]) {
+				finest = r;
+			}
+		}
+		int derived = 0;
+		for (int r = 0; r < ranges.length; r++) {
+			if (r != finest && multiple_(ranges[r], ranges[finest]) > 0) {
+				derived++;
+			}
+		}
+
+		// Ranges that are traced share the bearing of each segment, unless each
+		//  traces a different simplification of the path
+		if (ranges.length - derived > 1 && this.simplify_ == 0) {
+			ctx.bearings_ = new double[end];
+			Arrays.fill(ctx.bearings_, start, end, Double.NaN);
+		}
+
+		List<List<LatLngBounds>> results = new ArrayList<List<LatLngBounds>>(ranges.length);
+		for (int r = 0; r < ranges.length; r++) {
+			results.add(null);
+		}
+		ctx.recordHits_ = derived > 0;
+		results.set(finest, this.boxGrid_(ctx, lats, lngs, start, end, ranges[finest], this.mergeStrategy_));
+		FineGrid fine = derived > 0 ? new FineGrid(ctx) : null;
+
+		for (int r = 0; r < ranges.length; r++) {
+			if (r == finest) {
+				continue;
+			}
+			int multiple = multiple_(ranges[r], ranges[finest]);
+			if (multiple > 0) {
+				// Lay the grid over the same bounds as the finer grid, so that their
+				//  center lines coincide
+				ctx.setBounds(fine.south_, fine.north_, fine.west_, fine.east_);
+				fine.multiple_ = multiple;
+				results.set(r, this.boxGrid_(ctx, lats, lngs, start, end, ranges[r], this.mergeStrategy_, fine));
+			} else {
+				ctx.setBounds(south, north, west, east);
+				results.set(r, this.boxGrid_(ctx, lats, lngs, start, end, ranges[r], this.mergeStrategy_));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return how many times the fine range goes into the range, or 0 if it does
+	 *           not go a whole number of times
+	 */
+	private static int multiple_(double range, double fine) {
+		double multiple = Math.rint(range / fine);
+		return multiple >= 1 && multiple < Integer.MAX_VALUE && Math.abs(range - multiple * fine) <= 1e-9 * range
+				? (int) multiple : 0;
+	}
+
+	/**
+	 * The cells a path crossed on the finest grid of a multi-range call, and
+	 * where that grid lay, taken over from the context that traced it
+	 */
+	private static final class FineGrid {
+		final int[] hits_;
+		final int hitCount_;
+		final int latCenter_, lngCenter_;
+		final double south_, north_, west_, east_;
+		int multiple_;
+
+		FineGrid(BoxContext ctx) {
+			hits_ = ctx.hits_;
+			hitCount_ = ctx.hitCount_;
+			latCenter_ = ctx.latCenter_;
+			lngCenter_ = ctx.lngCenter_;
+			south_ = ctx.south_;
+			north_ = ctx.north_;
+			west_ = ctx.west_;
+			east_ = ctx.east_;
+			ctx.hits_ = new int[0];
+			ctx.hitCount_ = 0;
+			ctx.recordHits_ = false;
+		}
+	}
+
+	/**
+	 * Generates boxes for a given route and distance, together with the grid
+	 *   they were merged from so that points can be tested against them
+	 *   without a scan of the boxes. The cache is not used.
+	 *
+	 * @param {LatLng[]} path The path along which to create boxes
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @return {RouteCorridor} The boxes that cover the whole path and the cells
+	 *           they cover.
+	 */
+	public RouteCorridor corridor(List<LatLng> path, double range) {
+		BoxContext ctx = CONTEXTS.acquire();
+		try {
+			int n = path.size();
+			ctx.allocateVertices(n);
+			for (int i = 0; i < n; i++) {
+				LatLng latLng = path.get(i);
+				ctx.lats_[i] = latLng.lat;
+				ctx.lngs_[i] = latLng.lng;
+			}
+			return corridor(ctx, ctx.lats_, ctx.lngs_, 0, n, range);
+		} finally {
+			CONTEXTS.release(ctx);
+		}
+	}
+
+	/**
+	 * Generates boxes, and the grid they were merged from, for the vertices
+	 *   offset to offset + length - 1 of a route given as separate arrays of
+	 *   latitudes and longitudes. The cache is not used.
+	 *
+	 * @param {Number[]} lats The latitude of each vertex of the path
+	 * @param {Number[]} lngs The longitude of each vertex of the path
+	 * @param {Number} offset The first vertex to use
+	 * @param {Number} length The number of vertices to use
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @return {RouteCorridor} The boxes that cover the whole path and the cells
+	 *           they cover.
+	 */
+	public RouteCorridor corridor(double[] lats, double[] lngs, int offset, int length, double range) {
+		checkRange_(offset, length, Math.min(lats.length, lngs.length));
+		BoxContext ctx = CONTEXTS.acquire();
+		try {
+			return corridor(ctx, lats, lngs, offset, offset + length, range);
+		} finally {
+			CONTEXTS.release(ctx);
+		}
+	}
+
+	private RouteCorridor corridor(BoxContext ctx, double[] lats, double[] lngs, int start, int end, double range) {
+		checkPath_(start, end, range);
+		findBounds_(ctx, lats, lngs, start, end);
+		List<LatLngBounds> boxes = this.boxGrid_(ctx, lats, lngs, start, end, range, this.mergeStrategy_);
+		return new RouteCorridor(ctx, Collections.unmodifiableList(boxes));
+	}
+
+	/**
+	 * Starts boxing a path that is still growing, such as the GPS trace of a trip
+	 *   in progress
+	 *
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @return {Session} A session to append the vertices of the path to
+	 */
+	public Session newSession(double range) {
+		if (!(range > 0)) {
+			throw new IllegalArgumentException("range must be positive: " + range);
+		}
+		return new Session(range);
+	}
+
+	/**
+	 * Boxes a path one vertex at a time. Each append only traces the segment from
+	 *   the previous vertex and returns boxes for the cells it newly covers, so an
+	 *   update costs in proportion to the new segment rather than the whole path.
+	 *
+	 * The route bounds are not known in advance, so the grid is laid out from the
+	 *   first vertex rather than from the center of the bounds, and grows by whole
+	 *   tiles whenever the path nears its edge. The boxes therefore need not be
+	 *   the ones box() would give for the finished path, though they cover it just
+	 *   the same. A session is not thread-safe.
+	 */
+	public class Session {
+		private final double range_;
+		private final BoxContext ctx_ = new BoxContext();
+
+		// Every cell covered so far, and the cells newly covered by the latest append
+		private final SparseCellGrid cells_ = new SparseCellGrid();
+		private final SparseCellGrid added_ = new SparseCellGrid();
+
+		// The first vertex, which the grid lines are laid out from
+		private double centerLat_, centerLng_, lat1_, lon1_, q_;
+
+		// Number of grid lines north, south, east and west of the first vertex
+		private int north_, south_, east_, west_;
+
+		// The latest segment, and the cell of the previous vertex
+		private final double[] lats_ = new double[2];
+		private final double[] lngs_ = new double[2];
+		private long lastXY_;
+		private int vertices_;
+
+		Session(double range) {
+			this.range_ = range;
+		}
+
+		/**
+		 * @return {Number} The number of vertices of the route as it is now
+		 */
+		public int getVertexCount() {
+			return vertices_;
+		}
+
+		public List<LatLngBounds> append(LatLng latLng) {
+			return append(latLng.lat, latLng.lng);
+		}
+
+		/**
+		 * Add a vertex to the end of the path
+		 *
+		 * @param {Number} lat The latitude of the vertex
+		 * @param {Number} lng The longitude of the vertex
+		 * @return {LatLngBounds[]} Boxes covering the area the path newly covers,
+		 *           empty if the new segment stays within area already covered
+		 */
+		public List<LatLngBounds> append(double lat, double lng) {
+			if (vertices_ == 0) {
+				centerLat_ = lat;
+				centerLng_ = lng;
+				lat1_ = toRad(lat);
+				lon1_ = toRad(lng);
+				q_ = Math.cos(lat1_);
+			}
+			this.cover(lat, lng);
+
+			// Trace the new segment on a grid of its own
+			ctx_.grid_ = added_;
+			added_.reset(cells_.width(), cells_.height());
+			lats_[1] = lat;
+			lngs_[1] = lng;
+			if (vertices_ == 0) {
+				lastXY_ = getCellCoords_(ctx_, lat, lng);
+				markCell_(ctx_, lastXY_);
+			} else {
+				lastXY_ = traceCells_(ctx_, lats_, lngs_, 0, 2, lastXY_);
+			}
+			lats_[0] = lat;
+			lngs_[0] = lng;
+			vertices_++;
+
+			// Box only the cells that were not covered before
+			added_.subtract(cells_);
+			cells_.union(added_);
+			ctx_.clearBoxes();
+			mergeIntersectingCells_(ctx_);
+			return ctx_.boxes().toList();
+		}
+
+		/**
+		 * Grow the grid until it reaches at least two lines beyond a vertex on
+		 *   every side. It grows by whole tiles and at least doubles, so the lines
+		 *   are recomputed only a logarithmic number of times over the path.
+		 */
+		private void cover(double lat, double lng) {
+			int north = stepsToEdge_(centerLat_, lat, lat1_, 0, range_, 1, false) + 2;
+			int south = stepsToEdge_(centerLat_, lat, lat1_, 0, range_, -1, false) + 2;
+			int east = stepsToEdge_(centerLng_, lng, lon1_, q_, range_, 1, true) + 2;
+			int west = stepsToEdge_(centerLng_, lng, lon1_, q_, range_, -1, true) + 2;
+			if (north <= north_ && south <= south_ && east <= east_ && west <= west_) {
+				return;
+			}
+			int up = growth(south_, south);
+			int right = growth(west_, west);
+			north_ += growth(north_, north);
+			east_ += growth(east_, east);
+			south_ += up;
+			west_ += right;
+
+			ctx_.allocateLines(south_ + north_ + 1, west_ + east_ + 1);
+			ctx_.latCenter_ = south_;
+			ctx_.lngCenter_ = west_;
+			ctx_.latStep_ = toDeg(range_ / R);
+			ctx_.lngStep_ = toDeg(range_ / R / q_);
+			for (int i = 0; i < ctx_.latLines_; i++) {
+				int k = i - south_;
+				ctx_.latGrid_[i] = k < 0
+						? gridLine_(centerLat_, lat1_, 0, range_, -k, -1, false)
+						: gridLine_(centerLat_, lat1_, 0, range_, k, 1, false);
+			}
+			for (int i = 0; i < ctx_.lngLines_; i++) {
+				int k = i - west_;
+				ctx_.lngGrid_[i] = k < 0
+						? gridLine_(centerLng_, lon1_, q_, range_, -k, -1, true)
+						: gridLine_(centerLng_, lon1_, q_, range_, k, 1, true);
+			}
+
+			// Lines added to the south and west move the cells covered so far
+			cells_.grow(ctx_.lngLines_, ctx_.latLines_, right >>> 6, up >>> 6);
+			if (vertices_ > 0) {
+				lastXY_ = cell_(cellX_(lastXY_) + right, cellY_(lastXY_) + up);
+			}
+		}
+
+		/**
+		 * @return the number of lines to add on a side that has lines and needs
+		 *           needed of them, a whole number of tiles
+		 */
+		private int growth(int lines, int needed) {
+			if (needed <= lines) {
+				return 0;
+			}
+			return (Math.max(needed - lines, lines) + 63) & ~63;
+		}
+	}
+
+	/**
+	 * Boxes a route that may later be re-planned part of the way along, such as
+	 *   the route of a trip in progress after a detour
+	 *
+	 * @param {LatLng[]} path The path along which to create boxes
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @return {Plan} The boxes of the route, ready to have vertices replaced
+	 */
+	public Plan plan(List<LatLng> path, double range) {
+		int n = path.size();
+		double[] lats = new double[n], lngs = new double[n];
+		for (int i = 0; i < n; i++) {
+			LatLng latLng = path.get(i);
+			lats[i] = latLng.lat;
+			lngs[i] = latLng.lng;
+		}
+		return plan(lats, lngs, 0, n, range);
+	}
+
+	/**
+	 * Boxes the vertices offset to offset + length - 1 of a route given as
+	 *   separate arrays of latitudes and longitudes, which are copied, so that
+	 *   the route can later be re-planned part of the way along
+	 *
+	 * @param {Number[]} lats The latitude of each vertex of the path
+	 * @param {Number[]} lngs The longitude of each vertex of the path
+	 * @param {Number} offset The first vertex to use
+	 * @param {Number} length The number of vertices to use
+	 * @param {Number} range The distance in kms around the route that the generated
+	 *           boxes must cover.
+	 * @return {Plan} The boxes of the route, ready to have vertices replaced
+	 */
+	public Plan plan(double[] lats, double[] lngs, int offset, int length, double range) {
+		checkRange_(offset, length, Math.min(lats.length, lngs.length));
+		checkPath_(0, length, range);
+		return new Plan(Arrays.copyOfRange(lats, offset, offset + length), Arrays.copyOfRange(lngs, offset, offset + length),
+				range, this.mergeStrategy_);
+	}
+
+	/**
+	 * The boxes of a route that keeps the grid they were merged from and the cells
+	 *   each segment of the route crossed. When a stretch of the route is
+	 *   replaced, only the new segments are traced, only the cells near the old
+	 *   and new segments are marked again, and only the rows and columns holding
+	 *   those cells are merged again. The boxes that changed are returned as a
+	 *   delta alongside the new boxes.
+	 *
+	 * The grid reaches PLAN_MARGIN_LINES lines beyond the route on every side but
+	 *   is otherwise the one box() would lay, so the boxes are those box() would
+	 *   give for the route with the merge strategy set when the plan was made. A
+	 *   cover is not made line by line, so with MergeStrategy.COVER the whole grid
+	 *   is merged again instead. A route that strays beyond the grid is boxed
+	 *   again from scratch. Neither the cache nor simplification is used, and a
+	 *   plan is not thread-safe.
+	 */
+	public class Plan {
+		private final double range_;
+		private final BoxContext ctx_ = new BoxContext();
+
+		// The boxes merged a row at a time and a column at a time, and whichever of
+		//  the two is returned
+		private final Blocks rows_, columns_;
+		private Blocks boxes_;
+
+		// The path, the cell of each vertex, and the cells marked for each segment.
+		//  Segment i joins vertex i - 1 to vertex i, or marks the cell of vertex 0,
+		//  and marked the cells hits_[2 * j], hits_[2 * j + 1] for j from first_[i]
+		//  up to first_[i + 1].
+		private double[] lats_, lngs_;
+		private long[] cells_;
+		private int[] first_;
+		private int[] hits_;
+		private int vertices_, hitCount_;
+
+		// The segments traced by the latest replace, as for first_ and cells_
+		private int[] tracedFirst_ = new int[16];
+		private long[] tracedCells_ = new long[16];
+
+		Plan(double[] lats, double[] lngs, double range, MergeStrategy strategy) {
+			this.range_ = range;
+			this.lats_ = lats;
+			this.lngs_ = lngs;
+			this.vertices_ = lats.length;
+			this.cells_ = new long[vertices_];
+			this.first_ = new int[vertices_ + 1];
+			this.rows_ = new Blocks(false, strategy);
+			this.columns_ = new Blocks(true, strategy);
+			this.build_();
+		}
+
+		/**
+		 * @return {Number} The number of vertices of the route as it is now
+		 */
+		public int getVertexCount() {
+			return vertices_;
+		}
+
+		/**
+		 * @return {LatLngBounds[]} The boxes that cover the route as it is now
+		 */
+		public List<LatLngBounds> getBoxes() {
+			return boxes_.toList();
+		}
+
+		/**
+		 * Replace the vertices from to to - 1 of the route with new ones
+		 *
+		 * @param {Number} from The first vertex to replace
+		 * @param {Number} to The vertex after the last one to replace
+		 * @param {LatLng[]} vertices The new vertices
+		 * @return {BoxDelta} The boxes of the route now, and the boxes added and
+		 *           removed to get there
+		 */
+		public BoxDelta replace(int from, int to, List<LatLng> vertices) {
+			int n = vertices.size();
+			double[] lats = new double[n], lngs = new double[n];
+			for (int i = 0; i < n; i++) {
+				lats[i] = vertices.get(i).lat;
+				lngs[i] = vertices.get(i).lng;
+			}
+			return replace(from, to, lats, lngs, 0, n);
+		}
+
+		/**
+		 * Replace the vertices from to to - 1 of the route with new ones, which may
+		 *   be more or fewer. Vertices before from and from to on are kept.
+		 *
+		 * @param {Number} from The first vertex to replace
+		 * @param {Number} to The vertex after the last one to replace, from to
+		 *           insert vertices without replacing any
+		 * @param {Number[]} lats The latitude of each new vertex
+		 * @param {Number[]} lngs The longitude of each new vertex
+		 * @param {Number} offset The first new vertex to use
+		 * @param {Number} length The number of new vertices
+		 * @return {BoxDelta} The boxes of the route now, and the boxes added and
+		 *           removed to get there
+		 */
+		public BoxDelta replace(int from, int to, double[] lats, double[] lngs, int offset, int length) {
+			checkRange_(offset, length, Math.min(lats.length, lngs.length));
+			if (from < 0 || from > to || to > vertices_) {
+				throw new IndexOutOfBoundsException("vertices " + from + " to " + to + " of " + vertices_);
+			}
+			final int n = vertices_ - (to - from) + length;
+			checkPath_(0, n, range_);
+			final int end = from + length;
+
+			// Take the new vertices into the path, moving the ones after them along.
+			//  The cells are left as they were until the new segments are traced.
+			if (lats_.length < n) {
+				int capacity = Math.max(n, 2 * lats_.length);
+				lats_ = Arrays.copyOf(lats_, capacity);
+				lngs_ = Arrays.copyOf(lngs_, capacity);
+				cells_ = Arrays.copyOf(cells_, capacity);
+				first_ = Arrays.copyOf(first_, capacity + 1);
+			}
+			System.arraycopy(lats_, to, lats_, end, vertices_ - to);
+			System.arraycopy(lngs_, to, lngs_, end, vertices_ - to);
+			System.arraycopy(lats, offset, lats_, from, length);
+			System.arraycopy(lngs, offset, lngs_, from, length);
+
+			// Trace the new segments, and then the old ones after them until the
+			//  route is back in the cells it was in before
+			if (tracedCells_.length < n - from + 1) {
+				tracedFirst_ = new int[n - from + 1];
+				tracedCells_ = new long[n - from + 1];
+			}
+			ctx_.recordHits_ = true;
+			ctx_.hitCount_ = 0;
+			long cell = from > 0 ? cells_[from - 1] : 0;
+			int s = from;
+			while (s < n) {
+				tracedFirst_[s - from] = ctx_.hitCount_;
+				cell = this.segment_(s, cell);
+				tracedCells_[s - from] = cell;
+				if (s++ >= end && cell == cells_[s - 1 - end + to]) {
+					break;
+				}
+			}
+			tracedFirst_[s - from] = ctx_.hitCount_;
+			ctx_.recordHits_ = false;
+			final int oldEnd = s > end ? to + s - end : to;
+
+			// A route that leaves the grid is boxed again on a grid of its own
+			final int[] traced = ctx_.hits_;
+			final int tracedCount = ctx_.hitCount_;
+			final CellGrid grid = ctx_.grid_;
+			if (!interior_(grid, traced, 0, tracedCount)) {
+				List<LatLngBounds> removed = boxes_.toList();
+				vertices_ = n;
+				this.build_();
+				List<LatLngBounds> boxes = boxes_.toList();
+				return new BoxDelta(boxes, boxes, removed);
+			}
+
+			// The block of cells the old and new segments marked
+			final int hitFrom = first_[from], hitTo = first_[oldEnd];
+			int[] block = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+			extend_(block, hits_, hitFrom, hitTo);
+			extend_(block, traced, 0, tracedCount);
+
+			// Splice the cells of the new segments in place of the old
+			final int hitCount = hitCount_ - (hitTo - hitFrom) + tracedCount;
+			if (hits_.length < 2 * hitCount) {
+				hits_ = Arrays.copyOf(hits_, Math.max(2 * hitCount, 2 * hits_.length));
+			}
+			System.arraycopy(hits_, 2 * hitTo, hits_, 2 * (hitFrom + tracedCount), 2 * (hitCount_ - hitTo));
+			System.arraycopy(traced, 0, hits_, 2 * hitFrom, 2 * tracedCount);
+			System.arraycopy(cells_, oldEnd, cells_, s, vertices_ - oldEnd);
+			System.arraycopy(tracedCells_, 0, cells_, from, s - from);
+			System.arraycopy(first_, oldEnd, first_, s, vertices_ - oldEnd + 1);
+			for (int i = s, shift = hitFrom + tracedCount - hitTo; shift != 0 && i <= n; i++) {
+				first_[i] += shift;
+			}
+			for (int i = from; i < s; i++) {
+				first_[i] = hitFrom + tracedFirst_[i - from];
+			}
+			hitCount_ = hitCount;
+			vertices_ = n;
+
+			if (block[0] > block[2]) {
+				return new BoxDelta(boxes_.toList(), Collections.<LatLngBounds>emptyList(),
+						Collections.<LatLngBounds>emptyList());
+			}
+
+			// Unmark the block, with the neighbours of its cells, and mark it again
+			//  from every segment that marked cells near it
+			final int x0 = Math.max(block[0] - 1, 0), y0 = Math.max(block[1] - 1, 0);
+			final int x1 = Math.min(block[2] + 1, grid.width() - 1), y1 = Math.min(block[3] + 1, grid.height() - 1);
+			grid.clear(x0, y0, x1, y1);
+			for (int j = 0; j < 2 * hitCount_; j += 2) {
+				int x = hits_[j], y = hits_[j + 1];
+				if (x >= x0 - 1 && x <= x1 + 1 && y >= y0 - 1 && y <= y1 + 1) {
+					grid.markNeighbourhood(x, y);
+				}
+			}
+
+			// Merge the runs of the rows and columns of the block again. Whichever
+			//  set is chosen, the boxes it replaces are those returned before.
+			Blocks before = boxes_;
+			rows_.merge(ctx_, y0, y1);
+			columns_.merge(ctx_, x0, x1);
+			boxes_ = columns_.size() <= rows_.size() ? columns_ : rows_;
+			List<LatLngBounds> boxes = boxes_.toList();
+			if (boxes_ != before) {
+				return new BoxDelta(boxes, boxes, before.previous());
+			}
+			return new BoxDelta(boxes, boxes_.added(), boxes_.removed());
+		}
+
+		/**
+		 * Lay the grid over the whole route, trace it and merge the cells it marks
+		 */
+		private void build_() {
+			findBounds_(ctx_, lats_, lngs_, 0, vertices_);
+			buildGrid_(ctx_, range_, PLAN_MARGIN_LINES);
+			ctx_.recordHits_ = true;
+			ctx_.hitCount_ = 0;
+			long cell = 0;
+			for (int s = 0; s < vertices_; s++) {
+				first_[s] = ctx_.hitCount_;
+				cells_[s] = cell = this.segment_(s, cell);
+			}
+			first_[vertices_] = ctx_.hitCount_;
+			ctx_.recordHits_ = false;
+
+			// Keep the cells, tracing later segments into a fresh array
+			hits_ = ctx_.hits_;
+			hitCount_ = ctx_.hitCount_;
+			ctx_.hits_ = new int[0];
+			ctx_.hitCount_ = 0;
+
+			rows_.clear();
+			columns_.clear();
+			rows_.merge(ctx_, 0, ctx_.grid_.height() - 1);
+			columns_.merge(ctx_, 0, ctx_.grid_.width() - 1);
+			boxes_ = columns_.size() <= rows_.size() ? columns_ : rows_;
+		}
+
+		/**
+		 * Trace segment s of the route
+		 *
+		 * @param {Number} hint The cell of vertex s - 1, packed by cell_
+		 * @return {Number} The cell of vertex s, packed by cell_
+		 */
+		private long segment_(int s, long hint) {
+			if (s == 0) {
+				long cell = getCellCoords_(ctx_, lats_[0], lngs_[0]);
+				markCell_(ctx_, cell);
+				return cell;
+			}
+			return traceCells_(ctx_, lats_, lngs_, s - 1, s + 1, hint);
+		}
+	}
+
+	/**
+	 * @return whether every cell from from to to - 1 of a list of x, y pairs has
+	 *           its neighbourhood on the grid, short of the last row and column
+	 */
+	private static boolean interior_(CellGrid grid, int[] hits, int from, int to) {
+		int lastX = grid.width() - 3, lastY = grid.height() - 3;
+		for (int j = 2 * from; j < 2 * to; j += 2) {
+			if (hits[j] < 1 || hits[j + 1] < 1 || hits[j] > lastX || hits[j + 1] > lastY) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Extend a block of cells, as {x0, y0, x1, y1}, to take in the cells from
+	 *   from to to - 1 of a list of x, y pairs
+	 */
+	private static void extend_(int[] block, int[] hits, int from, int to) {
+		for (int j = 2 * from; j < 2 * to; j += 2) {
+			block[0] = Math.min(block[0], hits[j]);
+			block[1] = Math.min(block[1], hits[j + 1]);
+			block[2] = Math.max(block[2], hits[j]);
+			block[3] = Math.max(block[3], hits[j + 1]);
+		}
+	}
+
+	/**
+	 * The boxes of a grid merged from its runs of marked cells a row at a time,
+	 *   or a column at a time, kept as blocks of cells so that the runs of some
+	 *   lines can be merged again without the rest. A greedy merge makes each run
+	 *   a box of its own, as mergeIntersectingCells_ does, while a stacked merge
+	 *   makes a box of each stack of runs spanning the same cells of consecutive
+	 *   lines, as mergeSpans_ does. A cover depends on every line before it, so
+	 *   it is always made again over the whole grid, as coverCells_ makes it.
+	 *   Blocks are kept in the order those create their boxes, by first line and
+	 *   then first cell.
+	 */
+	private static final class Blocks {
+		private final boolean byColumn_;
+		private final boolean stack_;
+		private final boolean cover_;
+
+		// Block i spans cells start to end of lines line0 to line1, packed as
+		//  first_[i] = line0 << 32 | start and last_[i] = line1 << 32 | end
+		private long[] first_ = new long[16];
+		private long[] last_ = new long[16];
+		private LatLngBounds[] bounds_ = new LatLngBounds[16];
+		private int size_;
+
+		// The blocks of the latest merge, and the blocks of the lines it merged
+		//  again, which are swapped in. Until the next merge mergedBounds_ holds
+		//  the bounds of the blocks before it, mergedSize_ of them.
+		private long[] mergedFirst_ = new long[16];
+		private long[] mergedLast_ = new long[16];
+		private LatLngBounds[] mergedBounds_ = new LatLngBounds[16];
+		private int mergedSize_;
+		private long[] newFirst_ = new long[16];
+		private long[] newLast_ = new long[16];
+		private final List<LatLngBounds> added_ = new ArrayList<LatLngBounds>();
+		private final List<LatLngBounds> removed_ = new ArrayList<LatLngBounds>();
+
+		Blocks(boolean byColumn, MergeStrategy strategy) {
+			byColumn_ = byColumn;
+			stack_ = strategy == MergeStrategy.STACKED;
+			cover_ = strategy == MergeStrategy.COVER;
+		}
+
+		int size() {
+			return size_;
+		}
+
+		void clear() {
+			Arrays.fill(bounds_, 0, size_, null);
+			Arrays.fill(mergedBounds_, 0, mergedSize_, null);
+			size_ = 0;
+			mergedSize_ = 0;
+		}
+
+		List<LatLngBounds> toList() {
+			return Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(bounds_, size_)));
+		}
+
+		/**
+		 * @return the boxes as they were before the latest merge
+		 */
+		List<LatLngBounds> previous() {
+			return Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(mergedBounds_, mergedSize_)));
+		}
+
+		/**
+		 * @return the boxes the latest merge added
+		 */
+		List<LatLngBounds> added() {
+			return new ArrayList<LatLngBounds>(added_);
+		}
+
+		/**
+		 * @return the boxes the latest merge removed
+		 */
+		List<LatLngBounds> removed() {
+			return new ArrayList<LatLngBounds>(removed_);
+		}
+
+		/**
+		 * Merge the runs of lines lo to hi of the grid of a context again, along
+		 *   with those of the lines either side that a stack could join them to,
+		 *   and replace the blocks that touch them
+		 */
+		void merge(BoxContext ctx, int lo, int hi) {
+			final CellGrid grid = ctx.grid_;
+			final int lastLine = (byColumn_ ? grid.width() : grid.height()) - 1;
+			final int lastAlong = (byColumn_ ? grid.height() : grid.width()) - 1;
+			final int w0 = cover_ ? 0 : Math.max(0, stack_ ? lo - 1 : lo);
+			final int w1 = cover_ ? lastLine - 1 : Math.min(lastLine - 1, stack_ ? hi + 1 : hi);
+			added_.clear();
+			removed_.clear();
+
+			// The blocks that touch lines w0 to w1 now, in order. Only the stack
+			//  that crosses into w0 from below can start before it, so the few of
+			//  those are sorted into place as they come.
+			int n = 0;
+			if (cover_) {
+				coverCells_(ctx, byColumn_);
+				n = ctx.runs_;
+				if (newFirst_.length < n) {
+					newFirst_ = new long[Math.max(n, 2 * newFirst_.length)];
+					newLast_ = new long[newFirst_.length];
+				}
+				for (int i = 0; i < n; i++) {
+					int[] run = ctx.run_;
+					newFirst_[i] = (long) run[4 * i + 2] << 32 | run[4 * i];
+					newLast_[i] = (long) run[4 * i + 3] << 32 | run[4 * i + 1];
+				}
+			} else {
+				for (int line = nextLine_(grid, w0); line <= w1; line = nextLine_(grid, line + 1)) {
+					for (int start = next_(grid, line, 0, false), end; start < lastAlong; start = next_(grid, line, end + 1, false)) {
+						end = Math.min(next_(grid, line, start, true), lastAlong) - 1;
+						int line0 = line, line1 = line;
+						if (stack_) {
+							if (line > w0 && isRun_(grid, line - 1, start, end, lastAlong)) {
+								continue;
+							}
+							while (line0 > 0 && isRun_(grid, line0 - 1, start, end, lastAlong)) {
+								line0--;
+							}
+							while (line1 + 1 < lastLine && isRun_(grid, line1 + 1, start, end, lastAlong)) {
+								line1++;
+							}
+						}
+						if (n == newFirst_.length) {
+							newFirst_ = Arrays.copyOf(newFirst_, 2 * n);
+							newLast_ = Arrays.copyOf(newLast_, 2 * n);
+						}
+						long first = (long) line0 << 32 | start;
+						int i = n++;
+						for (; i > 0 && newFirst_[i - 1] > first; i--) {
+							newFirst_[i] = newFirst_[i - 1];
+							newLast_[i] = newLast_[i - 1];
+						}
+						newFirst_[i] = first;
+						newLast_[i] = (long) line1 << 32 | end;
+					}
+				}
+			}
+
+			// Replace the blocks that touched lines w0 to w1 with the new ones,
+			//  keeping those that are the same
+			int size = size_ + n;
+			Arrays.fill(mergedBounds_, 0, mergedSize_, null);
+			if (mergedFirst_.length < size) {
+				mergedFirst_ = new long[Math.max(size, 2 * mergedFirst_.length)];
+				mergedLast_ = new long[mergedFirst_.length];
+				mergedBounds_ = new LatLngBounds[mergedFirst_.length];
+			}
+			int m = 0;
+			for (int i = 0, j = 0; i < size_ || j < n; ) {
+				if (j < n && (i == size_ || newFirst_[j] < first_[i])) {
+					mergedFirst_[m] = newFirst_[j];
+					mergedLast_[m] = newLast_[j];
+					mergedBounds_[m] = this.bounds_(ctx, newFirst_[j], newLast_[j]);
+					added_.add(mergedBounds_[m++]);
+					j++;
+				} else if ((int) (first_[i] >>> 32) > w1 || (int) (last_[i] >>> 32) < w0) {
+					mergedFirst_[m] = first_[i];
+					mergedLast_[m] = last_[i];
+					mergedBounds_[m++] = bounds_[i++];
+				} else if (j < n && newFirst_[j] == first_[i] && newLast_[j] == last_[i]) {
+					mergedFirst_[m] = first_[i];
+					mergedLast_[m] = last_[i];
+					mergedBounds_[m++] = bounds_[i++];
+					j++;
+				} else {
+					removed_.add(bounds_[i++]);
+				}
+			}
+
+			long[] first = first_, last = last_;
+			LatLngBounds[] bounds = bounds_;
+			first_ = mergedFirst_;
+			last_ = mergedLast_;
+			bounds_ = mergedBounds_;
+			mergedFirst_ = first;
+			mergedLast_ = last;
+			mergedBounds_ = bounds;
+			mergedSize_ = size_;
+			size_ = m;
+		}
+
+		/**
+		 * @return the bounds of the cells of a block, as the merge gives them
+		 */
+		private LatLngBounds bounds_(BoxContext ctx, long first, long last) {
+			int line0 = (int) (first >>> 32), start = (int) first;
+			int line1 = (int) (last >>> 32), end = (int) last;
+			if (byColumn_) {
+				return new LatLngBounds(new LatLng(ctx.latGrid_[start], ctx.lngGrid_[line0]),
+						new LatLng(ctx.latGrid_[end + 1], ctx.lngGrid_[line1 + 1]));
+			}
+			return new LatLngBounds(new LatLng(ctx.latGrid_[line0], ctx.lngGrid_[start]),
+					new LatLng(ctx.latGrid_[line1 + 1], ctx.lngGrid_[end + 1]));
+		}
+
+		/**
+		 * @return whether cells start to end of a line are a whole run, as the
+		 *           merge finds them
+		 */
+		private boolean isRun_(CellGrid grid, int line, int start, int end, int lastAlong) {
+			return next_(grid, line, start, false) == start
+					&& (start == 0 || next_(grid, line, start - 1, false) != start - 1)
+					&& Math.min(next_(grid, line, start, true), lastAlong) == end + 1;
+		}
+
+		private int nextLine_(CellGrid grid, int line) {
+			return byColumn_ ? grid.nextColumnInUse(line) : grid.nextRowInUse(line);
+		}
+
+		/**
+		 * @return the first cell at or after from along a line that is marked, or
+		 *           unmarked
+		 */
+		private int next_(CellGrid grid, int line, int from, boolean unmarked) {
+			if (byColumn_) {
+				return unmarked ? grid.nextUnmarkedInColumn(line, from) : grid.nextMarkedInColumn(line, from);
+			}
+			return unmarked ? grid.nextUnmarkedInRow(line, from) : grid.nextMarkedInRow(line, from);
+		}
+	}
+
+	private static void checkRange_(int offset, int length, int size) {
+		if (offset < 0 || length < 0 || offset > size - length) {
+			throw new IndexOutOfBoundsException("offset " + offset + " length " + length + " of " + size);
+		}
+	}
+
+	/**
+	 * Box the vertices start to end - 1 of a path
+	 *
+	 * @param {Number[]} lats The latitude of each vertex of the path
+	 * @param {Number[]} lngs The longitude of each vertex of the path
+	 */
+	private List<LatLngBounds> box(BoxContext ctx, double[] lats, double[] lngs, int start, int end, double range, MergeStrategy strategy) {
+		if (start < end) {
+			findBounds_(ctx, lats, lngs, start, end);
+		}
+		return boxWithinBounds_(ctx, lats, lngs, start, end, range, strategy);
+	}
+
+	/**
+	 * Box the vertices start to end - 1 of a path whose bounds are already in
+	 *   the context
+	 */
+	private List<LatLngBounds> boxWithinBounds_(BoxContext ctx, double[] lats, double[] lngs, int start, int end, double range, MergeStrategy strategy) {
+		checkPath_(start, end, range);
+
+		// Serve a path boxed before from the cache
+		BoxCache cache = this.cache_;
+		BoxCache.Key key = null;
+		if (cache != null) {
+			key = BoxCache.key(lats, lngs, start, end, range, this.simplify_, strategy);
+			double[] cached = cache.get(key);
+			if (cached != null) {
+				return Collections.unmodifiableList(this.unpackBoxes_(cached));
+			}
+		}
+
+		List<LatLngBounds> ret = this.boxGrid_(ctx, lats, lngs, start, end, range, strategy);
+
+		if (cache != null) {
+			cache.put(key, packBoxes_(ret));
+			return Collections.unmodifiableList(ret);
+		}
+
+		return ret;
+	};
+
+	/**
+	 * Box the vertices start to end - 1 of a path into ctx.packed_, serving it
+	 *   from the cache if it was boxed before
+	 *
+	 * @return the number of boxes
+	 */
+	private int boxPacked_(BoxContext ctx, double[] lats, double[] lngs, int start, int end, double range) {
+		checkPath_(start, end, range);
+		findBounds_(ctx, lats, lngs, start, end);
+
+		BoxCache cache = this.cache_;
+		BoxCache.Key key = null;
+		if (cache != null) {
+			key = BoxCache.key(lats, lngs, start, end, range, this.simplify_, this.mergeStrategy_);
+			double[] cached = cache.get(key);
+			if (cached != null) {
+				ctx.allocatePacked(cached.length / 4);
+				System.arraycopy(cached, 0, ctx.packed_, 0, cached.length);
+				return cached.length / 4;
+			}
+		}
+
+		this.mergeGrid_(ctx, lats, lngs, start, end, range, this.mergeStrategy_, null);
+		int n = ctx.packBoxes();
+
+		if (cache != null) {
+			cache.put(key, Arrays.copyOf(ctx.packed_, 4 * n));
+		}
+		return n;
+	}
+
+	private static void checkPath_(int start, int end, double range) {
+		if (start >= end) {
+			throw new IllegalArgumentException("path has no vertices");
+		}
+		if (!(range > 0)) {
+			throw new IllegalArgumentException("range must be positive: " + range);
+		}
+	}
+
+	/**
+	 * Lay the grid over the path, trace it and merge the cells it covers into
+	 *   boxes, leaving the grid in the context
+	 */
+	private List<LatLngBounds> boxGrid_(BoxContext ctx, double[] lats, double[] lngs, int start, int end, double range, MergeStrategy strategy) {
+		return this.boxGrid_(ctx, lats, lngs, start, end, range, strategy, null);
+	}
+
+	/**
+	 * Lay the grid over the path and merge the cells it covers into boxes,
+	 *   leaving them in the context. The cells are traced from the path, or
+	 *   derived from the cells the path crossed on a finer grid if one is given.
+	 */
+	private void mergeGrid_(BoxContext ctx, double[] lats, double[] lngs, int start, int end, double range, MergeStrategy strategy, FineGrid fine) {
+		ctx.reset();
+
+		// Box a simplified copy of the path instead, over a range widened by the
+		//  most it may stray from the original. Cells derived from a finer grid need
+		//  only the widened range.
+		if (this.simplify_ > 0 && end - start > 2) {
+			double tolerance = this.simplify_ * range;
+			if (fine == null) {
+				end = simplify_(ctx, lats, lngs, start, end, tolerance);
+				start = 0;
+				lats = ctx.lats_;
+				lngs = ctx.lngs_;
+			}
+			range += tolerance;
+		}
+
+		if(logger.isDebugEnabled()){
+			StringBuilder ss = new StringBuilder();
+			ss.append("Rouate Boxer v").append(RouteBoxer.VERSION).append(" will create a route from ")
+					.append(end - start).append(" coordinates - [");
+			for (int i = start; i < end; i++) {
+				ss.append(i > start ? ", " : "").append(lats[i]).append(',').append(lngs[i]);
+			}
+			logger.debug(ss.append(']').toString());
+		}
+
+		// Only time the phases for a listener
+		BoxListener listener = this.listener_;
+		long started = listener != null ? System.nanoTime() : 0, built = 0, traced = 0;
+
+		// Build the grid that is overlaid on the route
+		this.buildGrid_(ctx, range);
+
+		if (listener != null) {
+			built = System.nanoTime();
+		}
+		if (this.printGrid_) {
+			printGrid(ctx, "Step 1");
+		}
+		// Identify the grid cells that the route intersects
+		if (fine != null) {
+			this.deriveIntersectingCells_(ctx, fine);
+		} else {
+			this.findIntersectingCells_(ctx, lats, lngs, start, end);
+		}
+
+		if (listener != null) {
+			traced = System.nanoTime();
+		}
+		if (this.printGrid_) {
+			printGrid(ctx, "After findIntersectingCells_");
+		}
+		// Merge adjacent intersected grid cells (and their neighbours) into two sets
+		//  of bounds, both of which cover them completely
+		if (strategy == MergeStrategy.STACKED) {
+			this.mergeSpans_(ctx);
+		} else if (strategy == MergeStrategy.COVER) {
+			this.mergeCover_(ctx);
+		} else {
+			this.mergeIntersectingCells_(ctx);
+		}
+
+		if (listener != null) {
+			listener.boxed(new BoxEvent(end - start, ctx.grid_.width(), ctx.grid_.height(), ctx.grid_.markedCells(),
+					ctx.boxesX_.size(), ctx.boxesY_.size(), built - started, traced - built, System.nanoTime() - traced));
+		}
+		if (this.printGrid_) {
+			printGrid(ctx, "After mergeIntersectingCells_");
+		}
+	}
+
+	/**
+	 * Lay the grid over the path and merge the cells it covers into boxes, as
+	 *   mergeGrid_ does, and hand back the boxes
+	 */
+	private List<LatLngBounds> boxGrid_(BoxContext ctx, double[] lats, double[] lngs, int start, int end, double range, MergeStrategy strategy, FineGrid fine) {
+		this.mergeGrid_(ctx, lats, lngs, start, end, range, strategy, fine);
 
-		List<LatLngBounds> ret = (this.boxesX_.size() <= this.boxesY_.size() ? this.boxesX_ : this.boxesY_);
+		// Return the set of merged bounds that has the fewest elements. The context
+		//  is recycled, so hand back a list of our own
+		List<LatLngBounds> ret = ctx.boxes().toList();
 		
-		if(logger.isInfoEnabled()){
+		if(logger.isDebugEnabled()){
 			StringBuilder ss = new StringBuilder();
-			ss.append("RouuteBoxer made ").append(ret.size()).append(" boxes (").append(this.boxesX_.size()).append(" xboxes and ").append(this.boxesY_.size()).append(" yboxes) they are: ");
+			ss.append("RouuteBoxer made ").append(ret.size()).append(" boxes (").append(ctx.boxesX_.size()).append(" xboxes and ").append(ctx.boxesY_.size()).append(" yboxes) they are: ");
 			for(LatLngBounds bounds : ret){
 				LatLng ne = bounds.getNorthEast();
 				LatLng sw = bounds.getSouthWest();
-				ss.append(String.format("%s,%s,%s,%s,", ne.lat, sw.lat, ne.lng, sw.lng));
+				ss.append(ne.lat).append(',').append(sw.lat).append(',').append(ne.lng).append(',').append(sw.lng).append(',');
 			}
 			ss.setLength(ss.length()-1);
-			logger.info(ss.toString());
+			logger.debug(ss.toString());
 			
 		}
 
-
 		return ret;
-	};
+	}
+
+	/**
+	 * @return the coordinates of the boxes, four per box as south, west, north
+	 *           and east
+	 */
+	private static double[] packBoxes_(List<LatLngBounds> boxes) {
+		double[] packed = new double[4 * boxes.size()];
+		int i = 0;
+		for (LatLngBounds bounds : boxes) {
+			packed[i++] = bounds.getSouthWest().lat;
+			packed[i++] = bounds.getSouthWest().lng;
+			packed[i++] = bounds.getNorthEast().lat;
+			packed[i++] = bounds.getNorthEast().lng;
+		}
+		return packed;
+	}
+
+	private List<LatLngBounds> unpackBoxes_(double[] packed) {
+		List<LatLngBounds> boxes = new ArrayList<LatLngBounds>(packed.length / 4);
+		for (int i = 0; i < packed.length; i += 4) {
+			boxes.add(new LatLngBounds(new LatLng(packed[i], packed[i + 1]), new LatLng(packed[i + 2], packed[i + 3])));
+		}
+		return boxes;
+	}
 	
-	private void printGrid(String msg){
+	private void printGrid(BoxContext ctx, String msg){
 		System.out.println("===================================================================");
 		System.out.println("======================START: " + msg + " =============================");
 		System.out.println("===================================================================");
 
-		for(int lng=0;lng<this.grid_.length;++lng){
+		for(int lng=0;lng<ctx.grid_.width();++lng){
 			StringBuilder row = new StringBuilder();
-			for(int lat = 0;lat<this.grid_[lng].length;++lat){
-				row.append("").append(this.grid_[lng][lat]).append("|");
+			for(int lat = 0;lat<ctx.grid_.height();++lat){
+				row.append("").append(ctx.grid_.isMarked(lng, lat) ? 1 : 0).append("|");
 			}
 			System.out.println(row.toString());
 		}
 		
 
 		StringBuilder lats = new StringBuilder();
-		lats.append(this.latGrid_.size()).append( " lats --> ");
-		for(int lat = 0;lat<this.latGrid_.size();++lat){
-			lats.append(this.latGrid_.get(lat));
+		lats.append(ctx.latLines_).append( " lats --> ");
+		for(int lat = 0;lat<ctx.latLines_;++lat){
+			lats.append(ctx.latGrid_[lat]);
 		}
 		System.out.println(lats.toString());
 		
@@ -304,76 +1950,303 @@ public class RouteBoxer {
 
 	}
 
+	/**
+	 * Find the bounding box of the vertices start to end - 1 of a path
+	 *
+	 * @param {Number[]} lats The latitudes of the path
+	 * @param {Number[]} lngs The longitudes of the path
+	 */
+	static void findBounds_(BoxContext ctx, double[] lats, double[] lngs, int start, int end) {
+		final double[] bounds = ctx.bounds_;
+		KERNEL.bounds(lats, lngs, start, end, bounds);
+		ctx.setBounds(bounds[0], bounds[1], bounds[2], bounds[3]);
+	}
+
+	/**
+	 * Simplify the vertices start to end - 1 of a path with the Douglas-Peucker
+	 *   algorithm into ctx.lats_ and ctx.lngs_, and find the bounds of what is
+	 *   left. Every vertex dropped lies within tolerance of the rhumb line between
+	 *   the vertices kept on either side of it, which is how the grid is traced.
+	 *
+	 * Distances are taken in Mercator coordinates, where rhumb lines are straight,
+	 *   and scaled by the cosine of the latitude closest to the equator that is
+	 *   involved. This overstates rather than understates how far a vertex is from
+	 *   the line, so a vertex is only ever kept when in doubt.
+	 *
+	 * @param {Number} tolerance The furthest in kms a vertex may be dropped from
+	 * @return {Number} The number of vertices kept
+	 */
+	static int simplify_(BoxContext ctx, double[] lats, double[] lngs, int start, int end, double tolerance) {
+		final int n = end - start;
+		ctx.allocateSimplify(n);
+		final double[] mercator = ctx.mercator_;
+		final double[] radians = ctx.radians_;
+		final boolean[] keep = ctx.keep_;
+		final int[] spans = ctx.spans_;
+		KERNEL.mercator(lats, start, end, mercator, 0);
+		KERNEL.radians(lngs, start, end, radians, 0);
+		Arrays.fill(keep, 0, n, false);
+		keep[0] = true;
+		keep[n - 1] = true;
+
+		// The spans still to check, as pairs of vertices that are kept
+		int top = 0;
+		spans[top++] = 0;
+		spans[top++] = n - 1;
+		while (top > 0) {
+			final int b = spans[--top], a = spans[--top];
+			final double ax = radians[a], ay = mercator[a];
+			final double dx = radians[b] - ax, dy = mercator[b] - ay;
+			final double length2 = dx * dx + dy * dy;
+			final double latA = lats[start + a], latB = lats[start + b];
+			int farthest = -1;
+			double distance = tolerance;
+			for (int i = a + 1; i < b; i++) {
+				double px = radians[i] - ax, py = mercator[i] - ay;
+				double t = length2 > 0 ? Math.max(0, Math.min(1, (px * dx + py * dy) / length2)) : 0;
+				double ex = px - t * dx, ey = py - t * dy;
+				double lat = lats[start + i];
+				double nearest = (latA < 0) != (latB < 0) || (latA < 0) != (lat < 0)
+						? 0 : Math.min(Math.abs(lat), Math.min(Math.abs(latA), Math.abs(latB)));
+				double d = R * Math.cos(toRad(nearest)) * Math.sqrt(ex * ex + ey * ey);
+				if (d > distance) {
+					farthest = i;
+					distance = d;
+				}
+			}
+			if (farthest >= 0) {
+				keep[farthest] = true;
+				spans[top++] = a;
+				spans[top++] = farthest;
+				spans[top++] = farthest;
+				spans[top++] = b;
+			}
+		}
+
+		// Copy the vertices kept, which may be moving them down within ctx.lats_
+		ctx.allocateVertices(n);
+		final double[] outLats = ctx.lats_, outLngs = ctx.lngs_;
+		int kept = 0;
+		for (int i = 0; i < n; i++) {
+			if (keep[i]) {
+				outLats[kept] = lats[start + i];
+				outLngs[kept] = lngs[start + i];
+				kept++;
+			}
+		}
+		findBounds_(ctx, outLats, outLngs, 0, kept);
+		return kept;
+	}
+
+	/**
+	 * Decode a Google encoded polyline into ctx.lats_ and ctx.lngs_, keeping
+	 *   track of the route bounds in the same pass
+	 *
+	 * @param {CharSequence} encoded The encoded polyline
+	 * @return {Number} The number of vertices decoded
+	 */
+	private static int decodePolyline_(BoxContext ctx, CharSequence encoded) {
+		final int length = encoded.length();
+		// every vertex takes at least two characters
+		ctx.allocateVertices(length / 2);
+		final double[] lats = ctx.lats_, lngs = ctx.lngs_;
+		double south = 0, north = 0, west = 0, east = 0;
+		int index = 0, n = 0, latE5 = 0, lngE5 = 0;
+		while (index < length) {
+			for (int axis = 0; axis < 2; axis++) {
+				int result = 0, shift = 0, b;
+				do {
+					if (index == length || shift > 30) {
+						throw new IllegalArgumentException("malformed encoded polyline at index " + index);
+					}
+					b = encoded.charAt(index++) - 63;
+					if (b < 0 || b > 63) {
+						throw new IllegalArgumentException("malformed encoded polyline at index " + (index - 1));
+					}
+					result |= (b & 0x1f) << shift;
+					shift += 5;
+				} while (b >= 0x20);
+				int delta = (result & 1) != 0 ? ~(result >>> 1) : (result >>> 1);
+				if (axis == 0) {
+					latE5 += delta;
+				} else {
+					lngE5 += delta;
+				}
+			}
+			double lat = latE5 / 1e5, lng = lngE5 / 1e5;
+			if (n == 0) {
+				south = north = lat;
+				west = east = lng;
+			} else {
+				if (lat < south) south = lat; else if (lat > north) north = lat;
+				if (lng < west) west = lng; else if (lng > east) east = lng;
+			}
+			lats[n] = lat;
+			lngs[n] = lng;
+			n++;
+		}
+		ctx.setBounds(south, north, west, east);
+		return n;
+	}
+
 	/**
 	 * Generates boxes for a given route and distance
 	 *
-	 * @param {LatLng[]} vertices The vertices of the path over which to lay the grid
 	 * @param {Number} range The spacing of the grid cells.
 	 */
-	private void buildGrid_(List<LatLng> vertices, double range) {
+	void buildGrid_(BoxContext ctx, double range) {
+		this.buildGrid_(ctx, range, 0);
+	}
+
+	/**
+	 * Generates boxes for a given route and distance, on a grid that reaches
+	 *   margin lines further out on every side than the route bounds need. The
+	 *   extra lines sit where lines of a larger grid would, so the cells of the
+	 *   route, and the boxes merged from them, are the same.
+	 *
+	 * @param {Number} range The spacing of the grid cells.
+	 * @param {Number} margin The number of lines to add on each side, fewer
+	 *           where they would reach a pole or wrap half way round the world
+	 */
+	void buildGrid_(BoxContext ctx, double range, int margin) {
+
+		// The bounding box of the whole path
+		final double south = ctx.south_, north = ctx.north_;
+		final double west = ctx.west_, east = ctx.east_;
 
-		// Create a LatLngBounds object that contains the whole path
-		LatLngBounds routeBounds = new LatLngBounds();
-		logger.trace("vertices[0]"+vertices.get(0).toString()+" vertices["+(vertices.size()-1)+"] "+vertices.get(vertices.size()-1).toString());
-		for (int i = 0; i < vertices.size(); i++) {
-			//need to clone this otherwise, it affects the list order and messes things up!
-			LatLng latLng = vertices.get(i).clone();
-			routeBounds.extend(latLng);
-		}
-		//logger.trace("routeBounds "+routeBounds.toString());
 		// Find the center of the bounding box of the path
-		LatLng routeBoundsCenter = routeBounds.getCenter();
-		//logger.trace("routeBoundsCenter "+routeBoundsCenter.toString());
+		final double centerLat = south + (north - south) / (double)2;
+		final double centerLng = west + (east - west) / (double)2;
+		if (logger.isDebugEnabled()) {
+			logger.debug("The route bounds is:" + north + "," + south + "," + east + "," + west);
+		}
+
+		// Grid lines sit a whole number of ranges out from the center along due
+		//  N/S/E/W rhumb lines, so their positions have a closed form and the number
+		//  needed on each side follows directly from the route bounds
+		final double lat1 = toRad(centerLat);
+		final double lon1 = toRad(centerLng);
+		final double q = Math.cos(lat1);
+
 		// Starting from the center define grid lines outwards vertically until they
 		//  extend beyond the edge of the bounding box by more than one cell
-		this.latGrid_.add(routeBoundsCenter.lat());
-		LatLng rhumb = routeBoundsCenter.rhumbDestinationPoint(0, range);
-		
-		logger.info("The route bounds is:" + String.format("%s,%s,%s,%s", routeBounds.getNorthEast().lat(), routeBounds.getSouthWest().lat, routeBounds.getNorthEast().lng, routeBounds.getSouthWest().lng));
-		
-		//logger.trace("rhumb 1 "+rhumb.toString());
-		// Add lines from the center out to the north
-		this.latGrid_.add(rhumb.lat());
-		for (int i = 2;  (this.latGrid_.get(i - 2) - routeBounds.getNorthEast().lat())<DOUBLE_FUDGE; i++) {
-			this.latGrid_.add(routeBoundsCenter.rhumbDestinationPoint(0, range * (double)i).lat());
-			
-		}
-		//logger.trace("pass1 latGrid size"+latGrid_.size());
-		// Add lines from the center out to the south  
-		for (int i1 = 1; (this.latGrid_.get(1) - routeBounds.getSouthWest().lat())>DOUBLE_FUDGE; i1++) {
-			this.latGrid_.add(0,routeBoundsCenter.rhumbDestinationPoint(180, range * (double)i1).lat());
-		}
-		//logger.trace("pass2 latGrid size"+latGrid_.size());
+		int up = stepsToEdge_(centerLat, north, lat1, 0, range, 1, false);
+		int down = stepsToEdge_(centerLat, south, lat1, 0, range, -1, false);
+
 		// Starting from the center define grid lines outwards horizontally until they
-		//  extend beyond the edge of the bounding box by more than one cell  
-		this.lngGrid_.add(routeBoundsCenter.lng());
+		//  extend beyond the edge of the bounding box by more than one cell
+		int right = stepsToEdge_(centerLng, east, lon1, q, range, 1, true);
+		int left = stepsToEdge_(centerLng, west, lon1, q, range, -1, true);
+
+		if (margin > 0) {
+			up += margin_(margin, up, (Math.PI / 2 - lat1) * R / range);
+			down += margin_(margin, down, (Math.PI / 2 + lat1) * R / range);
+			right += margin_(margin, right, Math.PI * q * R / range);
+			left += margin_(margin, left, Math.PI * q * R / range);
+		}
 
-		// Add lines from the center out to the east
-		this.lngGrid_.add(routeBoundsCenter.rhumbDestinationPoint(90, range).lng());
-		for (int i2 = 2; (this.lngGrid_.get(i2 - 2) < routeBounds.getNorthEast().lng()); i2++) {
-			
-//			String msg = new StringBuilder().append("this.lngGrid_.get(i2 - 2)=").append(this.lngGrid_.get(i2 - 2))
-//					.append(" routeBounds.getNorthEast().lng()=").append(routeBounds.getNorthEast().lng())
-//					.append(" adding - routeBoundsCenter.rhumbDestinationPoint(90, range * (double)i2).lng()= ").append(routeBoundsCenter.rhumbDestinationPoint(90, range * (double)i2).lng())
-//					.toString();
-//			debug(msg);
+		ctx.allocateLines(down + up + 3, left + right + 3);
+		ctx.latCenter_ = down + 1;
+		ctx.lngCenter_ = left + 1;
+		ctx.latStep_ = toDeg(range / R);
+		ctx.lngStep_ = toDeg(range / R / q);
 
-			
-			this.lngGrid_.add(routeBoundsCenter.rhumbDestinationPoint(90, range * (double)i2).lng());
+		// Lines from the south edge up to the center, then from the center out to
+		//  one line beyond the north edge
+		for (int k = down + 1, i = 0; k > 0; k--, i++) {
+			ctx.latGrid_[i] = gridLine_(centerLat, lat1, 0, range, k, -1, false);
+		}
+		for (int k = 0, i = down + 1; k <= up + 1; k++, i++) {
+			ctx.latGrid_[i] = gridLine_(centerLat, lat1, 0, range, k, 1, false);
 		}
-		
-		
-		//logger.trace("pass1 lngGrid_ size"+lngGrid_.size());
-		// Add lines from the center out to the west
-		for (int i3 = 1; (this.lngGrid_.get(1) - routeBounds.getSouthWest().lng())>DOUBLE_FUDGE; i3++) {
-			
 
-			this.lngGrid_.add(0,routeBoundsCenter.rhumbDestinationPoint(270, range * (double)i3).lng());
+		// Lines from the west edge across to the center, then from the center out to
+		//  one line beyond the east edge
+		for (int k = left + 1, i = 0; k > 0; k--, i++) {
+			ctx.lngGrid_[i] = gridLine_(centerLng, lon1, q, range, k, -1, true);
 		}
-		// Create a two dimensional array representing this grid
-		this.grid_ = new int[this.lngGrid_.size()][this.latGrid_.size()];
+		for (int k = 0, i = left + 1; k <= right + 1; k++, i++) {
+			ctx.lngGrid_[i] = gridLine_(centerLng, lon1, q, range, k, 1, true);
+		}
+
+		// Create the grid of cells, tiled if the bounding box is large enough for
+		//  most of it to be empty
+		int width = ctx.lngLines_, height = ctx.latLines_;
+		boolean sparse = this.gridMode_ == GridMode.SPARSE
+				|| (this.gridMode_ == GridMode.AUTO && (long) width * height > SPARSE_GRID_CELLS);
+		ctx.allocateGrid(width, height, sparse);
 	};
 
+	/**
+	 * @return the number of lines up to margin that can be added beyond the
+	 *           outermost of lines + 1 lines on one side of the center, keeping
+	 *           every line short of room ranges out
+	 */
+	private static int margin_(int margin, int lines, double room) {
+		return Math.max(0, Math.min(margin, (int) Math.floor(room) - 2 - lines));
+	}
+
+	/**
+	 * Find how many grid lines out from the center it takes to reach an edge of
+	 *   the route bounds, i.e. the first line k that is at or beyond the edge.
+	 *   The division gives the answer up to rounding, which is then settled
+	 *   against the actual line positions.
+	 *
+	 * @param {Number} center The latitude or longitude of the center line
+	 * @param {Number} edge The latitude or longitude of the edge to reach
+	 * @param {Number} center1 The center in radians
+	 * @param {Number} q The cosine of the center latitude, for longitude lines
+	 * @param {Number} range The spacing of the grid lines
+	 * @param {Number} dir 1 to go north or east, -1 to go south or west
+	 * @param {boolean} lng Whether these are lines of longitude
+	 * @return {Number} The number of steps to the edge
+	 */
+	private static int stepsToEdge_(double center, double edge, double center1, double q, double range, int dir, boolean lng) {
+		double steps = dir * (toRad(edge) - center1) * R / range;
+		if (lng) {
+			steps *= q;
+		}
+		int k = steps > 0 ? (int) Math.ceil(steps) : 0;
+		while (k > 0 && dir * gridLine_(center, center1, q, range, k - 1, dir, lng) >= dir * edge) {
+			k--;
+		}
+		// bounded, as lines past a pole or the antimeridian wrap around
+		for (int limit = k + 2; k < limit && dir * gridLine_(center, center1, q, range, k, dir, lng) < dir * edge; ) {
+			k++;
+		}
+		return k;
+	}
+
+	/**
+	 * Closed form of the grid line k ranges out from the center, giving the same
+	 *   value as center.rhumbDestinationPoint(brng, range * k) for a due north,
+	 *   south, east or west bearing
+	 *
+	 * @param {Number} center The latitude or longitude of the center line
+	 * @param {Number} center1 The center in radians
+	 * @param {Number} q The cosine of the center latitude, for longitude lines
+	 * @param {Number} range The spacing of the grid lines
+	 * @param {Number} k The number of lines out from the center
+	 * @param {Number} dir 1 to go north or east, -1 to go south or west
+	 * @param {boolean} lng Whether these are lines of longitude
+	 * @return {Number} The latitude or longitude of the line
+	 */
+	private static double gridLine_(double center, double center1, double q, double range, int k, int dir, boolean lng) {
+		if (k == 0) {
+			return center;
+		}
+		final double d = range * (double) k / R;
+		if (lng) {
+			return toDeg((center1 + dir * d / q + Math.PI) % (2 * Math.PI) - Math.PI);
+		}
+		double lat2 = center1 + dir * d;
+		// check for going past the pole
+		if (Math.abs(lat2) > Math.PI / 2) {
+			lat2 = lat2 > 0 ? Math.PI - lat2 : - (Math.PI - lat2);
+		}
+		return toDeg(lat2);
+	}
+
 //	private static void debug(String msg){
 //		System.out.println(msg);
 //	}
@@ -381,89 +2254,231 @@ public class RouteBoxer {
 	/**
 	 * Find all of the cells in the overlaid grid that the path intersects
 	 *
-	 * @param {LatLng[]} vertices The vertices of the path
+	 * @param {Number[]} lats The latitudes of the path
+	 * @param {Number[]} lngs The longitudes of the path
+	 * @param {Number} start The first vertex of the path
+	 * @param {Number} end One past the last vertex of the path
 	 */
-	private void findIntersectingCells_(List<LatLng> vertices) {
+	void findIntersectingCells_(BoxContext ctx, double[] lats, double[] lngs, int start, int end) {
+		int chunks = Math.min(4 * ForkJoinPool.getCommonPoolParallelism(), (end - start) / MIN_CHUNK_VERTICES);
+		if (end - start >= this.parallelThreshold_ && chunks > 1) {
+			this.findIntersectingCellsInChunks_(ctx, lats, lngs, start, end, chunks);
+			return;
+		}
+
 		// Find the cell where the path begins
-		int[] hintXY = this.getCellCoords_(vertices.get(0));
+		long hintXY = this.getCellCoords_(ctx, lats[start], lngs[start]);
 
 		// Mark that cell and it's neighbours for inclusion in the boxes
-		this.markCell_(hintXY);
+		this.markCell_(ctx, hintXY);
+
+		this.traceCells_(ctx, lats, lngs, start, end, hintXY);
+	};
+
+	/**
+	 * Find the cells that the path intersects by splitting it into chunks that
+	 *   are traced concurrently, each into a sparse grid of its own, and then
+	 *   unioning those grids into the grid of the context
+	 *
+	 * @param {Number} chunks The number of chunks to split the path into
+	 */
+	private void findIntersectingCellsInChunks_(BoxContext ctx, double[] lats, double[] lngs, int start, int end, int chunks) {
+		// Chunk j runs from vertex first[j] to vertex first[j + 1], both included
+		int[] first = new int[chunks + 1];
+		for (int j = 0; j <= chunks; j++) {
+			first[j] = start + (int) ((long) (end - 1 - start) * j / chunks);
+		}
+		List<TraceTask> tasks = new ArrayList<TraceTask>(chunks);
+		try {
+			for (int j = 0; j < chunks; j++) {
+				BoxContext part = j == 0 ? ctx : CONTEXTS.acquire();
+				tasks.add(new TraceTask(part, lats, lngs, first[j], first[j + 1] + 1, j == 0));
+				if (j > 0) {
+					part.mirror(ctx);
+				}
+			}
+			ForkJoinTask.invokeAll(tasks);
+
+			// Each chunk found the cell of its first vertex from scratch. For a
+			//  vertex lying exactly on a grid line that can differ from the cell
+			//  reached by walking the path from the start, so such a chunk is traced
+			//  again from the cell the chunk before it ended in
+			for (int j = 1; j < chunks; j++) {
+				TraceTask task = tasks.get(j), previous = tasks.get(j - 1);
+				if (task.startXY_ != previous.endXY_) {
+					task.ctx_.grid_.reset(ctx.grid_.width(), ctx.grid_.height());
+					task.ctx_.hitCount_ = 0;
+					task.endXY_ = this.traceCells_(task.ctx_, lats, lngs, task.from_, task.to_, previous.endXY_);
+				}
+			}
+			for (int j = 1; j < chunks; j++) {
+				ctx.grid_.union(tasks.get(j).ctx_.grid_);
+				ctx.addHits(tasks.get(j).ctx_);
+			}
+		} finally {
+			for (int j = 1; j < tasks.size(); j++) {
+				CONTEXTS.release(tasks.get(j).ctx_);
+			}
+		}
+	}
+
+	/**
+	 * Traces the vertices from to to - 1 of a path into the grid of a context
+	 */
+	private final class TraceTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final BoxContext ctx_;
+		private final double[] lats_, lngs_;
+		private final int from_, to_;
+		private final boolean first_;
+		private long startXY_, endXY_;
+
+		TraceTask(BoxContext ctx, double[] lats, double[] lngs, int from, int to, boolean first) {
+			ctx_ = ctx;
+			lats_ = lats;
+			lngs_ = lngs;
+			from_ = from;
+			to_ = to;
+			first_ = first;
+		}
+
+		@Override
+		protected void compute() {
+			startXY_ = getCellCoords_(ctx_, lats_[from_], lngs_[from_]);
+			if (first_) {
+				markCell_(ctx_, startXY_);
+			}
+			endXY_ = traceCells_(ctx_, lats_, lngs_, from_, to_, startXY_);
+		}
+	}
 
+	/**
+	 * Mark the cells the path crosses on its way from vertex from to vertex
+	 *   to - 1
+	 *
+	 * @param {Number} hintXY The cell containing vertex from, packed by cell_
+	 * @return {Number} The cell containing vertex to - 1, packed by cell_
+	 */
+	private long traceCells_(BoxContext ctx, double[] lats, double[] lngs, int from, int to, long hintXY) {
 		// Work through each vertex on the path identifying which grid cell it is in
-		for (int i = 1; i < vertices.size(); i++) {
+		for (int i = from + 1; i < to; i++) {
 			// Use the known cell of the previous vertex to help find the cell of this vertex
-			int[] gridXY = this.getGridCoordsFromHint_(vertices.get(i), vertices.get(i - 1), hintXY);
-			//logger.trace("findIntersectingCells_ gridXY "+gridXY[0]+" "+gridXY[1]);
-			if (gridXY[0] == hintXY[0] && gridXY[1] == hintXY[1]) {
+			long gridXY = this.getGridCoordsFromHint_(ctx, lats[i], lngs[i], lats[i - 1], lngs[i - 1], hintXY);
+			int gridX = cellX_(gridXY), gridY = cellY_(gridXY);
+			int hintX = cellX_(hintXY), hintY = cellY_(hintXY);
+			if (gridXY == hintXY) {
 				// This vertex is in the same cell as the previous vertex
 				// The cell will already have been marked for inclusion in the boxes
 				continue;
 
-			} else if ((Math.abs(hintXY[0] - gridXY[0]) == 1 && hintXY[1] == gridXY[1]) ||
-					(hintXY[0] == gridXY[0] && Math.abs(hintXY[1] - gridXY[1]) == 1)) {
+			} else if ((Math.abs(hintX - gridX) == 1 && hintY == gridY) ||
+					(hintX == gridX && Math.abs(hintY - gridY) == 1)) {
 				// This vertex is in a cell that shares an edge with the previous cell
 				// Mark this cell and it's neighbours for inclusion in the boxes
-				this.markCell_(gridXY);
+				this.markCell_(ctx, gridX, gridY);
 
 			} else {
 				// This vertex is in a cell that does not share an edge with the previous
 				//  cell. This means that the path passes through other cells between
 				//  this vertex and the previous vertex, and we must determine which cells
 				//  it passes through
-				this.getGridIntersects_(vertices.get(i - 1), vertices.get(i), hintXY, gridXY);
+				if (this.traceEngine_ == TraceEngine.MERCATOR) {
+					this.getGridIntersectsMercator_(ctx, lats[i - 1], lngs[i - 1], lats[i], lngs[i], hintX, hintY, gridX, gridY);
+				} else {
+					this.getGridIntersects_(ctx, lats[i - 1], lngs[i - 1], lats[i], lngs[i], bearing_(ctx, lats, lngs, i), hintX, hintY, gridX, gridY);
+				}
 			}
 
 			// Use this cell to find and compare with the next one
 			hintXY = gridXY;
 		}
+		return hintXY;
 	};
 
 	/**
-	 * Find the cell a path vertex is in by brute force iteration over the grid
+	 * The rhumb line bearing of the segment from vertex i - 1 to vertex i, taken
+	 *   from the bearings shared between the ranges of one call where there are
+	 *   any
+	 */
+	private static double bearing_(BoxContext ctx, double[] lats, double[] lngs, int i) {
+		double[] bearings = ctx.bearings_;
+		if (bearings == null) {
+			return rhumbBearing(lats[i - 1], lngs[i - 1], lats[i], lngs[i]);
+		}
+		double brng = bearings[i];
+		if (Double.isNaN(brng)) {
+			brng = bearings[i] = rhumbBearing(lats[i - 1], lngs[i - 1], lats[i], lngs[i]);
+		}
+		return brng;
+	}
+
+	/**
+	 * Mark the cells of a grid whose range is a whole multiple of the range of a
+	 *   finer grid already traced. Both grids have a line through the center of
+	 *   the route bounds, so every coarse cell is made of whole fine cells, and
+	 *   the path crosses a coarse cell exactly when it crosses one of its fine
+	 *   cells.
+	 */
+	private void deriveIntersectingCells_(BoxContext ctx, FineGrid fine) {
+		final int[] hits = fine.hits_;
+		final int m = fine.multiple_;
+		for (int i = 0; i < fine.hitCount_; i++) {
+			int x = Math.floorDiv(hits[2 * i] - fine.lngCenter_, m) + ctx.lngCenter_;
+			int y = Math.floorDiv(hits[2 * i + 1] - fine.latCenter_, m) + ctx.latCenter_;
+			ctx.grid_.markNeighbourhood(x, y);
+		}
+	}
+
+	/**
+	 * Find the cell a path vertex is in from the grid lines alone. A vertex on a
+	 *   grid line is in the cell below or to the west of it.
 	 *
-	 * @param {LatLng[]} latlng The latlng of the vertex
-	 * @return {Number[][]} The cell coordinates of this vertex in the grid
+	 * @param {Number} lat The latitude of the vertex
+	 * @param {Number} lng The longitude of the vertex
+	 * @return {Number} The cell coordinates of this vertex in the grid, packed
+	 *           by cell_
 	 */ 
-	private int[] getCellCoords_(LatLng latlng) {
-		int x,y;
-		for (x = 0; this.lngGrid_.get(x) < latlng.lng(); x++) {}
-		for (y = 0; this.latGrid_.get(y) < latlng.lat(); y++) {}
-		int[] result={x - 1, y - 1};
-		return result;
+	private long getCellCoords_(BoxContext ctx, double lat, double lng) {
+		return cell_(ctx.lngCell(lng), ctx.latCell(lat));
 	};
 
 	/**
 	 * Find the cell a path vertex is in based on the known location of a nearby
-	 *  vertex. This saves searching the whole grid when working through vertices
-	 *  on the polyline that are likely to be in close proximity to each other.
+	 *  vertex. The vertex is only placed in a different row or column from the
+	 *  nearby one in the direction it lies from it, and one on a grid line it has
+	 *  reached is placed before the line, as walking the lines from the nearby
+	 *  cell would place it. Vertices off the grid are clamped to its edge cells.
 	 *
-	 * @param {LatLng[]} latlng The latlng of the vertex to locate in the grid
-	 * @param {LatLng[]} hintlatlng The latlng of the vertex with a known location
-	 * @param {Number[]} hint The cell containing the vertex with a known location
-	 * @return {Number[]} The cell coordinates of the vertex to locate in the grid
+	 * @param {Number} lat The latitude of the vertex to locate in the grid
+	 * @param {Number} lng The longitude of the vertex to locate in the grid
+	 * @param {Number} hintLat The latitude of the vertex with a known location
+	 * @param {Number} hintLng The longitude of the vertex with a known location
+	 * @param {Number} hint The cell containing the vertex with a known location,
+	 *           packed by cell_
+	 * @return {Number} The cell coordinates of the vertex to locate in the grid,
+	 *           packed by cell_
 	 */ 
-	private int[] getGridCoordsFromHint_(LatLng latlng, LatLng  hintlatlng,int[] hint) {
-		int x=0, y=0;
-		try {
-			if (latlng.lng() > hintlatlng.lng()) {
-				for (x = hint[0]; this.lngGrid_.get(x + 1) < latlng.lng(); x++) {}
-			} else {
-				for (x = hint[0]; this.lngGrid_.get(x) > latlng.lng(); x--) {}
-			}
-
-			if (latlng.lat() > hintlatlng.lat()) {
-				for (y = hint[1]; this.latGrid_.get(y + 1) < latlng.lat(); y++) {}
-			} else {        
-				for (y = hint[1]; this.latGrid_.get(y) > latlng.lat(); y--) {}
-			}
-		} catch (IndexOutOfBoundsException e) {
-			logger.error("getGridCoordsFromHint_ IndexOutOfBoundsException x"+x+" y "+y);
-		}
-		int[] result = {x, y};
-		return result;
+	private long getGridCoordsFromHint_(BoxContext ctx, double lat, double lng, double hintLat, double hintLng, long hint) {
+		return cell_(ctx.lngCell(lng, cellX_(hint), lng > hintLng), ctx.latCell(lat, cellY_(hint), lat > hintLat));
 	};
 
+	/**
+	 * Pack the coordinates of a cell into a long, x in the high half, so that
+	 *   cells can be passed around and compared without allocating
+	 */
+	static long cell_(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	static int cellX_(long cell) {
+		return (int) (cell >> 32);
+	}
+
+	static int cellY_(long cell) {
+		return (int) cell;
+	}
+
 
 	/**
 	 * Identify the grid squares that a path segment between two vertices
@@ -478,73 +2493,79 @@ public class RouteBoxer {
 	 *     (or start) and the current one (or end) at the current y coordinate,
 	 *     which is known for the grid line being intersected
 	 *     
-	 * @param {LatLng} start The latlng of the vertex at the start of the segment
-	 * @param {LatLng} end The latlng of the vertex at the end of the segment
-	 * @param {Number[]} startXY The cell containing the start vertex
-	 * @param {Number[]} endXY The cell containing the vend vertex
+	 * @param {Number} startLat The latitude of the vertex at the start of the segment
+	 * @param {Number} startLng The longitude of the vertex at the start of the segment
+	 * @param {Number} endLat The latitude of the vertex at the end of the segment
+	 * @param {Number} endLng The longitude of the vertex at the end of the segment
+	 * @param {Number} brng The rhumb line bearing from the start to the end (Step 1)
+	 * @param {Number} startX The column of the cell containing the start vertex
+	 * @param {Number} startY The row of the cell containing the start vertex
+	 * @param {Number} endX The column of the cell containing the end vertex
+	 * @param {Number} endY The row of the cell containing the end vertex
 	 */ 
-	private void getGridIntersects_(LatLng start, LatLng end, int[] startXY, int [] endXY) {
-		LatLng edgePoint;
-		int[] edgeXY;
+	private void getGridIntersects_(BoxContext ctx, double startLat, double startLng, double endLat, double endLng, double brng, int startX, int startY, int endX, int endY) {
+		final double[] edgePoint = ctx.point_;
+		long edgeXY;
 		int i;
-		double brng = start.rhumbBearingTo(end);         // Step 1.
 
-		LatLng hint = start;
-		int[] hintXY = startXY;
+		double hintLat = startLat, hintLng = startLng;
+		long hintXY = cell_(startX, startY);
 		
-		if(startXY[0]<1 || startXY[1]< 1){
+		if(startX<1 || startY< 1){
 			//this is an invalid point
 			return;
 		}
 
 		// Handle a line segment that travels south first
-		if (end.lat() > start.lat()) {
+		if (endLat > startLat) {
 			// Iterate over the east to west grid lines between the start and end cells
-			for (i = startXY[1] + 1; i <= endXY[1]; i++) {
+			for (i = startY + 1; i <= endY; i++) {
 				// Find the latlng of the point where the path segment intersects with
 				//  this grid line (Step 2 & 3)
-				edgePoint = this.getGridIntersect_(start, brng, this.latGrid_.get(i));
+				this.getGridIntersect_(startLat, startLng, brng, ctx.latGrid_[i], edgePoint);
 
 				// Find the cell containing this intersect point (Step 4)
-				edgeXY = this.getGridCoordsFromHint_(edgePoint, hint, hintXY);
+				edgeXY = this.getGridCoordsFromHint_(ctx, edgePoint[0], edgePoint[1], hintLat, hintLng, hintXY);
 
 				// Mark every cell the path has crossed between this grid and the start,
 				//   or the previous east to west grid line it crossed (Step 5)
-				this.fillInGridSquares_(hintXY[0], edgeXY[0], i - 1);
+				this.fillInGridSquares_(ctx, cellX_(hintXY), cellX_(edgeXY), i - 1);
 
 				// Use the point where it crossed this grid line as the reference for the
 				//  next iteration
-				hint = edgePoint;
+				hintLat = edgePoint[0];
+				hintLng = edgePoint[1];
 				hintXY = edgeXY;
 			}
 
 			// Mark every cell the path has crossed between the last east to west grid
 			//  line it crossed and the end (Step 5)
-			this.fillInGridSquares_(hintXY[0], endXY[0], i - 1);
+			this.fillInGridSquares_(ctx, cellX_(hintXY), endX, i - 1);
 
 		} else {
 			// Iterate over the east to west grid lines between the start and end cells
-			for (i = startXY[1]; i > endXY[1]; i--) {
+			for (i = startY; i > endY; i--) {
 				// Find the latlng of the point where the path segment intersects with
 				//  this grid line (Step 2 & 3)
-				edgePoint = this.getGridIntersect_(start, brng, this.latGrid_.get(i));
+				this.getGridIntersect_(startLat, startLng, brng, ctx.latGrid_[i], edgePoint);
 
 				// Find the cell containing this intersect point (Step 4)
-				edgeXY = this.getGridCoordsFromHint_(edgePoint, hint, hintXY);
+				edgeXY = this.getGridCoordsFromHint_(ctx, edgePoint[0], edgePoint[1], hintLat, hintLng, hintXY);
 
 				// Mark every cell the path has crossed between this grid and the start,
 				//   or the previous east to west grid line it crossed (Step 5)
-				this.fillInGridSquares_(hintXY[0], edgeXY[0], i);
+				this.fillInGridSquares_(ctx, cellX_(hintXY), cellX_(edgeXY), i);
 
 				// Use the point where it crossed this grid line as the reference for the
 				//  next iteration
-				hint = edgePoint;
+				hintLat = edgePoint[0];
+				hintLng = edgePoint[1];
 				hintXY = edgeXY;
 			}
 
 			// Mark every cell the path has crossed between the last east to west grid
 			//  line it crossed and the end (Step 5)
-			this.fillInGridSquares_(hintXY[0], endXY[0], i);
+			this.fillInGridSquares_(ctx, cellX_(hintXY), endX, i);
 
 		}
 	};
@@ -553,17 +2574,80 @@ public class RouteBoxer {
 	 * Find the latlng at which a path segment intersects with a given
 	 *   line of latitude
 	 *     
-	 * @param {LatLng} start The vertex at the start of the path segment
+	 * @param {Number} startLat The latitude of the vertex at the start of the path segment
+	 * @param {Number} startLng The longitude of the vertex at the start of the path segment
 	 * @param {Number} brng The bearing of the line from start to end
 	 * @param {Number} gridLineLat The latitude of the grid line being intersected
-	 * @return {LatLng} The latlng of the point where the path segment intersects
-	 *                    the grid line
+	 * @param {Number[]} point Receives the latitude and longitude of the point where
+	 *                    the path segment intersects the grid line
 	 */ 
-	private LatLng getGridIntersect_(LatLng start, double brng, double gridLineLat) {
-		double d = R * ((toRad(gridLineLat) - start.latRad()) / Math.cos(toRad(brng)));
-		return start.rhumbDestinationPoint(brng, d);
+	private void getGridIntersect_(double startLat, double startLng, double brng, double gridLineLat, double[] point) {
+		double d = R * ((toRad(gridLineLat) - toRad(startLat)) / Math.cos(toRad(brng)));
+		rhumbDestinationPoint(startLat, startLng, brng, d, point);
 	};
 
+	/**
+	 * Mark the cells a segment crosses, as getGridIntersects_ does, but working in
+	 *   Mercator space. There the rhumb line is straight, so the longitude where
+	 *   it crosses each line of latitude follows by linear interpolation between
+	 *   the projected ends of the segment. Between one crossing and the next the
+	 *   segment stays in one row, so the cells it passes through are the run
+	 *   between the columns of the two crossings, which is the order a DDA
+	 *   traversal of the grid visits them in.
+	 *
+	 * @param {Number} startX The column of the cell containing the start vertex
+	 * @param {Number} startY The row of the cell containing the start vertex
+	 * @param {Number} endX The column of the cell containing the end vertex
+	 * @param {Number} endY The row of the cell containing the end vertex
+	 */
+	private void getGridIntersectsMercator_(BoxContext ctx, double startLat, double startLng, double endLat, double endLng, int startX, int startY, int endX, int endY) {
+		if (startX < 1 || startY < 1) {
+			//this is an invalid point
+			return;
+		}
+		final double[] psi = ctx.latMercator();
+		final double psi0 = mercator_(startLat);
+		double dLng = endLng - startLng;
+		if (Math.abs(dLng) > 180) {
+			dLng = dLng > 0 ? dLng - 360 : dLng + 360;
+		}
+		final double slope = dLng / (mercator_(endLat) - psi0);
+
+		int i;
+		int hintX = startX;
+		double hintLng = startLng;
+		if (endLat > startLat) {
+			for (i = startY + 1; i <= endY; i++) {
+				double lng = wrapLng_(startLng + (psi[i] - psi0) * slope);
+				int x = ctx.lngCell(lng, hintX, lng > hintLng);
+				this.fillInGridSquares_(ctx, hintX, x, i - 1);
+				hintLng = lng;
+				hintX = x;
+			}
+			this.fillInGridSquares_(ctx, hintX, endX, i - 1);
+		} else {
+			for (i = startY; i > endY; i--) {
+				double lng = wrapLng_(startLng + (psi[i] - psi0) * slope);
+				int x = ctx.lngCell(lng, hintX, lng > hintLng);
+				this.fillInGridSquares_(ctx, hintX, x, i);
+				hintLng = lng;
+				hintX = x;
+			}
+			this.fillInGridSquares_(ctx, hintX, endX, i);
+		}
+	}
+
+	/**
+	 * @return the Mercator projection of a latitude in degrees, in radians
+	 */
+	static double mercator_(double lat) {
+		return Math.log(Math.tan(Math.PI / 4 + toRad(lat) / 2));
+	}
+
+	private static double wrapLng_(double lng) {
+		return lng >= 180 ? lng - 360 : lng < -180 ? lng + 360 : lng;
+	}
+
 	/**
 	 * Mark all cells in a given row of the grid that lie between two columns
 	 *   for inclusion in the boxes
@@ -572,18 +2656,16 @@ public class RouteBoxer {
 	 * @param {Number} endx The last column to include
 	 * @param {Number} y The row of the cells to include
 	 */ 
-	private void fillInGridSquares_(int startx, int endx, int y) {
+	private void fillInGridSquares_(BoxContext ctx, int startx, int endx, int y) {
 		//logger.trace("fillInGridSquares_ startx"+startx+" endx "+endx+" y "+y);
 		int x;
 		if (startx < endx) {
 			for (x = startx; x <= endx; x++) {
-				int [] cell = {x,y};
-				this.markCell_(cell);
+				this.markCell_(ctx, x, y);
 			}
 		} else {
 			for (x = startx; x >= endx; x--) {
-				int [] cell = {x,y};
-				this.markCell_(cell);
+				this.markCell_(ctx, x, y);
 			}            
 		}      
 	};
@@ -591,27 +2673,22 @@ public class RouteBoxer {
 	/**
 	 * Mark a cell and the 8 immediate neighbours for inclusion in the boxes
 	 *     
-	 * @param {Number[]} square The cell to mark
+	 * @param {Number} x The column of the cell to mark
+	 * @param {Number} y The row of the cell to mark
 	 */ 
-	private void markCell_(int[] cell) {
-		int x = cell[0];
-		int y = cell[1];
-		try {
-		//logger.trace("markCell x"+x+" y "+y);
-		this.grid_[x - 1][y - 1] = 1;
-		this.grid_[x][y - 1] = 1;
-		this.grid_[x + 1][y - 1] = 1;
-		this.grid_[x - 1][y] = 1;
-		this.grid_[x][y] = 1;
-		this.grid_[x + 1][y] = 1;
-		this.grid_[x - 1][y + 1] = 1;
-		this.grid_[x][y + 1] = 1;
-		this.grid_[x + 1][y + 1] = 1;
-		} catch (IndexOutOfBoundsException e) {
-			logger.trace("markCell_ IndexOutOfBoundsException x"+x+" y "+y);
+	private void markCell_(BoxContext ctx, int x, int y) {
+		if (ctx.recordHits_) {
+			ctx.addHit(x, y);
+		}
+		if (!ctx.grid_.markNeighbourhood(x, y) && logger.isTraceEnabled()) {
+			logger.trace("markCell_ off the grid x"+x+" y "+y);
 		}
 	};
 
+	private void markCell_(BoxContext ctx, long cell) {
+		this.markCell_(ctx, cellX_(cell), cellY_(cell));
+	}
+
 	/**
 	 * Create two sets of bounding boxes, both of which cover all of the cells that
 	 *   have been marked for inclusion.
@@ -625,179 +2702,286 @@ public class RouteBoxer {
 	 *   width that are adjacent vertically.
 	 *     
 	 */ 
-	public void mergeIntersectingCells_() {
-		int x, y;
-		LatLngBounds box;
+	void mergeIntersectingCells_(BoxContext ctx) {
+		CellGrid grid = ctx.grid_;
+		int x, y, end;
 
-		// The box we are currently expanding with new cells
-		LatLngBounds currentBox = null;
+		// Cells in the last row and column have no grid line beyond them to close
+		//  their bounds, so runs of cells stop short of them
+		int lastX = grid.width() - 1;
+		int lastY = grid.height() - 1;
 
-		//this.grid_ = new int[this.lngGrid_.size()][this.latGrid_.size()];
 		if(logger.isTraceEnabled()){
-			logger.trace("this.grid_[0].length=" + this.grid_[0].length + " this.lngGrid_.size())=" + this.lngGrid_.size());
-			logger.trace("this.grid_.length=" + this.grid_.length + " this.latGrid_.size())=" + this.latGrid_.size());
-		}
-		// Traverse the grid a row at a time
-		for (y = 0; y < this.grid_[0].length; y++) {
-			for (x = 0; x < this.grid_.length; x++) {
-
-				if (this.grid_[x][y]==1) {
-					// This cell is marked for inclusion. If the previous cell in this
-					//   row was also marked for inclusion, merge this cell into it's box.
-					// Otherwise start a new box.
-					int[] cell = {x, y};
-					box = this.getCellBounds_(cell);
-					if(box == null){
-						if(logger.isTraceEnabled()){
-							logger.trace("y skipping box " + x + " x" + y);
-						}
-						continue;
-					}
-					if (currentBox!=null) {
-						if(logger.isTraceEnabled()){
-							logger.trace("y extending box " + box+ " " + x + "x" + y);
-						}
-						currentBox.extend(box.getNorthEast());
-					} else {
-						currentBox = box;
-					}
-
-				} else {
-					// This cell is not marked for inclusion. If the previous cell was
-					//  marked for inclusion, merge it's box with a box that spans the same
-					//  columns from the row below if possible.
-					if(logger.isTraceEnabled()){
-						logger.trace("y merging box " + currentBox + " " + x + " x" + y);
-					}
-					this.mergeBoxesY_(currentBox);
-					currentBox = null;
+			logger.trace("grid.height()=" + grid.height() + " ctx.latLines_=" + ctx.latLines_);
+			logger.trace("grid.width()=" + grid.width() + " ctx.lngLines_=" + ctx.lngLines_);
+		}
+		// Traverse the grid a row at a time, a word of cells per step and skipping
+		//  rows the grid knows to be empty
+		for (y = grid.nextRowInUse(0); y < lastY; y = grid.nextRowInUse(y + 1)) {
+			for (x = grid.nextMarkedInRow(y, 0); x < lastX; x = grid.nextMarkedInRow(y, end)) {
+				// Every run of marked cells in this row becomes one box
+				end = Math.min(grid.nextUnmarkedInRow(y, x), lastX);
+				if(logger.isTraceEnabled()){
+					logger.trace("y merging run " + x + "-" + (end - 1) + " x" + y);
 				}
+				this.mergeBoxesY_(ctx, y, x, end - 1);
 			}
-			// If the last cell was marked for inclusion, merge it's box with a matching
-			//  box from the row below if possible.
-			this.mergeBoxesY_(currentBox);
-			currentBox = null;
 		}
 
-		// Traverse the grid a column at a time
-		for (x = 0; x < this.grid_.length; x++) {
-			for (y = 0; y < this.grid_[0].length; y++) {
-				if (this.grid_[x][y]==1) {
-
-					// This cell is marked for inclusion. If the previous cell in this
-					//   column was also marked for inclusion, merge this cell into it's box.
-					// Otherwise start a new box.
-					int[] cell = {x, y};
-					if (currentBox!=null) {
-
-						box = this.getCellBounds_(cell);
-						if(box == null){
-							if(logger.isTraceEnabled()){
-								logger.trace("x skipping box " + x + " x" + y);
-							}
-							continue;
-						}
-						if(logger.isTraceEnabled()){
-							logger.trace("x extending box " + box+ " " + x + "x" + y);
-						}
-						currentBox.extend(box.getNorthEast());
-					} else {
-						currentBox = this.getCellBounds_(cell);
-					}
-
-				} else {
-					// This cell is not marked for inclusion. If the previous cell was
-					//  marked for inclusion, merge it's box with a box that spans the same
-					//  rows from the column to the left if possible.
-					if(logger.isTraceEnabled()){
-						logger.trace("x merging box " + currentBox + " " + x + " x" + y);
-					}
-					this.mergeBoxesX_(currentBox);
-					currentBox = null;
-
+		// Traverse the grid a column at a time, a word of cells per step and skipping
+		//  columns the grid knows to be empty
+		for (x = grid.nextColumnInUse(0); x < lastX; x = grid.nextColumnInUse(x + 1)) {
+			for (y = grid.nextMarkedInColumn(x, 0); y < lastY; y = grid.nextMarkedInColumn(x, end)) {
+				// Every run of marked cells in this column becomes one box
+				end = Math.min(grid.nextUnmarkedInColumn(x, y), lastY);
+				if(logger.isTraceEnabled()){
+					logger.trace("x merging run " + x + " x" + y + "-" + (end - 1));
 				}
+				this.mergeBoxesX_(ctx, x, y, end - 1);
 			}
-			// If the last cell was marked for inclusion, merge it's box with a matching
-			//  box from the column to the left if possible.
-			this.mergeBoxesX_(currentBox);
-			currentBox = null;
 		}
 	};
 
 	/**
-	 * Search for an existing box in an adjacent row to the given box that spans the
-	 * same set of columns and if one is found merge the given box into it. If one
-	 * is not found, append this box to the list of existing boxes.
+	 * Create two sets of bounding boxes, both of which cover all of the cells that
+	 *   have been marked for inclusion, stacking runs that line up.
 	 *
-	 * @param {LatLngBounds}  The box to merge
-	 */ 
-	public void mergeBoxesX_ (LatLngBounds box) {
-		if (box != null) {
-			for (int i = 0; i < this.boxesX_.size(); i++) {
-				if(LatLngBoundsEq_(box, this.boxesX_.get(i))){
-					this.boxesX_.get(i).extend(box.getNorthEast());
-					return;
-				}
+	 * Each run of marked cells in a column is merged with the run in the column to
+	 *   its left if that spans exactly the same rows, and the run it was merged
+	 *   into ended in that column. The second set does the same for runs in rows.
+	 *   Boxes are only created once the runs are all merged.
+	 */
+	void mergeSpans_(BoxContext ctx) {
+		CellGrid grid = ctx.grid_;
+		int x, y, end;
+		int lastX = grid.width() - 1;
+		int lastY = grid.height() - 1;
+
+		// Runs across rows, stacked up the grid
+		ctx.runs_ = 0;
+		for (y = grid.nextRowInUse(0); y < lastY; y = grid.nextRowInUse(y + 1)) {
+			for (x = grid.nextMarkedInRow(y, 0); x < lastX; x = grid.nextMarkedInRow(y, end)) {
+				end = Math.min(grid.nextUnmarkedInRow(y, x), lastX);
+				mergeSpan_(ctx, ctx.spansY_, x, end - 1, y);
 			}
-			this.boxesX_.add(box);
 		}
-	};
+		for (int i = 0; i < ctx.runs_; i++) {
+			int[] run = ctx.run_;
+			addCellBounds_(ctx, ctx.boxesY_, run[4 * i], run[4 * i + 2], run[4 * i + 1], run[4 * i + 3]);
+		}
+
+		// Runs down columns, stacked across the grid
+		ctx.runs_ = 0;
+		for (x = grid.nextColumnInUse(0); x < lastX; x = grid.nextColumnInUse(x + 1)) {
+			for (y = grid.nextMarkedInColumn(x, 0); y < lastY; y = grid.nextMarkedInColumn(x, end)) {
+				end = Math.min(grid.nextUnmarkedInColumn(x, y), lastY);
+				mergeSpan_(ctx, ctx.spansX_, y, end - 1, x);
+			}
+		}
+		for (int i = 0; i < ctx.runs_; i++) {
+			int[] run = ctx.run_;
+			addCellBounds_(ctx, ctx.boxesX_, run[4 * i + 2], run[4 * i], run[4 * i + 3], run[4 * i + 1]);
+		}
+	}
+
+	/**
+	 * Create two sets of bounding boxes, both of which cover all of the cells that
+	 *   have been marked for inclusion, covering the cells with blocks a row at a
+	 *   time and a column at a time as coverCells_ does.
+	 */
+	void mergeCover_(BoxContext ctx) {
+		coverCells_(ctx, false);
+		for (int i = 0; i < ctx.runs_; i++) {
+			int[] run = ctx.run_;
+			addCellBounds_(ctx, ctx.boxesY_, run[4 * i], run[4 * i + 2], run[4 * i + 1], run[4 * i + 3]);
+		}
+		coverCells_(ctx, true);
+		for (int i = 0; i < ctx.runs_; i++) {
+			int[] run = ctx.run_;
+			addCellBounds_(ctx, ctx.boxesX_, run[4 * i + 2], run[4 * i], run[4 * i + 3], run[4 * i + 1]);
+		}
+	}
 
 	/**
-	 * Search for an existing box in an adjacent column to the given box that spans
-	 * the same set of rows and if one is found merge the given box into it. If one
-	 * is not found, append this box to the list of existing boxes.
+	 * Cover the marked cells with blocks a line at a time, along rows or along
+	 *   columns, leaving each block in the runs of the context as its first and
+	 *   last cell along the lines and its first and last line.
 	 *
-	 * @param {LatLngBounds}  The box to merge
-	 */ 	
-	public void mergeBoxesY_(LatLngBounds box) {
-		if (box != null) {
-			for (int i = 0; i < this.boxesY_.size(); i++) {
-				if(LatLngBoundsEq_(box, this.boxesY_.get(i))){
-					this.boxesY_.get(i).extend(box.getNorthEast());
-					return;
+	 * The first marked cell not yet covered, taking lines in order, is the first
+	 *   corner of the next block. Growing across the lines after it, the block
+	 *   narrows to the run of marked cells each of them has from that corner,
+	 *   covered or not, and it stops at the first line where the corner itself
+	 *   is unmarked. Of the blocks passed through, the one with the most cells
+	 *   not yet covered is taken. Blocks may overlap, which lets a block reach
+	 *   across cells covered before to take more that are not.
+	 *
+	 * @param {Boolean} byColumn Whether the lines are columns rather than rows
+	 */
+	static void coverCells_(BoxContext ctx, boolean byColumn) {
+		CellGrid grid = ctx.grid_;
+		CellGrid uncovered = ctx.uncovered();
+		int lastLine = (byColumn ? grid.width() : grid.height()) - 1;
+		int lastAlong = (byColumn ? grid.height() : grid.width()) - 1;
+		ctx.runs_ = 0;
+		for (int line = nextLine_(uncovered, byColumn, 0); line < lastLine; line = nextLine_(uncovered, byColumn, line + 1)) {
+			for (int start = nextCell_(uncovered, byColumn, line, 0, false); start < lastAlong; start = nextCell_(uncovered, byColumn, line, start, false)) {
+				int end = Math.min(nextCell_(grid, byColumn, line, start, true), lastAlong) - 1;
+				long cells = countCells_(uncovered, byColumn, line, start, end);
+				long best = cells;
+				int bestLine = line, bestEnd = end;
+				for (int next = line + 1; next < lastLine && nextCell_(grid, byColumn, next, start, false) == start; next++) {
+					int narrowed = Math.min(nextCell_(grid, byColumn, next, start, true), lastAlong) - 1;
+					if (narrowed < end) {
+						end = narrowed;
+						cells = 0;
+						for (int l = line; l < next; l++) {
+							cells += countCells_(uncovered, byColumn, l, start, end);
+						}
+					}
+					cells += countCells_(uncovered, byColumn, next, start, end);
+					if (cells > best) {
+						best = cells;
+						bestLine = next;
+						bestEnd = end;
+					}
+				}
+				int i = ctx.addRun(start, bestEnd, line);
+				ctx.run_[4 * i + 3] = bestLine;
+				if (byColumn) {
+					uncovered.clear(line, start, bestLine, bestEnd);
+				} else {
+					uncovered.clear(start, line, bestEnd, bestLine);
 				}
 			}
-			this.boxesY_.add(box);
 		}
-	};
+	}
 
+	/**
+	 * @return the number of marked cells from start to end of a row or column
+	 */
+	private static long countCells_(CellGrid grid, boolean byColumn, int line, int start, int end) {
+		long cells = 0;
+		for (int from = nextCell_(grid, byColumn, line, start, false), to; from <= end; from = nextCell_(grid, byColumn, line, to, false)) {
+			to = Math.min(nextCell_(grid, byColumn, line, from, true), end + 1);
+			cells += to - from;
+		}
+		return cells;
+	}
 
-	private static boolean LatLngBoundsEq_(LatLngBounds b1, LatLngBounds b2){
-		return latLngEq_(b1.getNorthEast() , b2.getNorthEast()) && latLngEq_(b1.getSouthWest() , b2.getSouthWest());
+	private static int nextLine_(CellGrid grid, boolean byColumn, int line) {
+		return byColumn ? grid.nextColumnInUse(line) : grid.nextRowInUse(line);
 	}
 
-	
-	private static boolean latLngEq_(LatLng l1, LatLng l2){
-		return eq_(l1.lat() , l2.lat()) && eq_(l1.lng() , l2.lng());
+	/**
+	 * @return the first cell at or after from along a row or column that is
+	 *           marked, or unmarked
+	 */
+	private static int nextCell_(CellGrid grid, boolean byColumn, int line, int from, boolean unmarked) {
+		if (byColumn) {
+			return unmarked ? grid.nextUnmarkedInColumn(line, from) : grid.nextMarkedInColumn(line, from);
+		}
+		return unmarked ? grid.nextUnmarkedInRow(line, from) : grid.nextMarkedInRow(line, from);
 	}
-	
-	private static boolean eq_(double c1, double c2){
-		return Math.abs(c1 - c2) < DOUBLE_FUDGE;
+
+	/**
+	 * Extend the run last seen spanning cells start to end into row or column
+	 *   at, if it ended just before it, or start a new run
+	 */
+	private static void mergeSpan_(BoxContext ctx, SpanIndex spans, int start, int end, int at) {
+		int i = spans.get(start, end);
+		if (i >= 0 && ctx.run_[4 * i + 3] == at - 1) {
+			ctx.run_[4 * i + 3] = at;
+			return;
+		}
+		i = ctx.addRun(start, end, at);
+		spans.put(start, end, i);
 	}
 
 	/**
-	 * Obtain the LatLng of the origin of a cell on the grid
+	 * Add the box of a run of cells down a column to the boxes found so far.
+	 *
+	 * The original code searched the boxes for one with the same bounds as the
+	 * run to within DOUBLE_FUDGE and extended it instead. As DOUBLE_FUDGE is 0,
+	 * and no two runs have the same bounds anyway, that merge never fired: every
+	 * run has always become a box of its own, and still does here. Runs that span
+	 * the same cells of adjacent columns are stacked into one box by mergeSpans_.
 	 *
-	 * @param {Number[]} cell The cell to lookup.
-	 * @return {LatLng} The latlng of the origin of the cell.
+	 * @param {Number} x The column of the box to add
+	 * @param {Number} starty The first row the box spans
+	 * @param {Number} endy The last row the box spans
 	 */ 
-	LatLngBounds getCellBounds_(int[] cell) {
-		
+	void mergeBoxesX_ (BoxContext ctx, int x, int starty, int endy) {
+		ctx.boxesX_.add(ctx.latGrid_[starty], ctx.lngGrid_[x], ctx.latGrid_[endy + 1], ctx.lngGrid_[x + 1]);
+	};
 
-		if(this.latGrid_.size() <= cell[1]+1
-				|| this.lngGrid_.size() <= cell[0]+1
-				|| cell[0] < 0 || cell[1] < 0){
-			return null;
-		}
-		
-		return new LatLngBounds(
-				new LatLng(this.latGrid_.get(cell[1]), this.lngGrid_.get(cell[0])),
-				new LatLng(this.latGrid_.get(cell[1]+1), this.lngGrid_.get(cell[0]+1)));
+	/**
+	 * Add the box of a run of cells across a row to the boxes found so far. As
+	 * for mergeBoxesX_, the run never merges with an earlier box.
+	 *
+	 * @param {Number} y The row of the box to add
+	 * @param {Number} startx The first column the box spans
+	 * @param {Number} endx The last column the box spans
+	 */ 	
+	void mergeBoxesY_(BoxContext ctx, int y, int startx, int endx) {
+		ctx.boxesY_.add(ctx.latGrid_[y], ctx.lngGrid_[startx], ctx.latGrid_[y + 1], ctx.lngGrid_[endx + 1]);
+	};
+
+	/**
+	 * Add the bounds of a block of cells on the grid to a set of boxes
+	 *
+	 * @param {Number} startx The first column of the block
+	 * @param {Number} starty The first row of the block
+	 * @param {Number} endx The last column of the block
+	 * @param {Number} endy The last row of the block
+	 */ 
+	private static void addCellBounds_(BoxContext ctx, BoxContext.Boxes boxes, int startx, int starty, int endx, int endy) {
+		boxes.add(ctx.latGrid_[starty], ctx.lngGrid_[startx], ctx.latGrid_[endy + 1], ctx.lngGrid_[endx + 1]);
 	};
 
 
 
+	/**
+	 * Destination point along a rhumb line, written into point as {lat, lng} so
+	 *   that callers working on raw coordinates need not create a LatLng
+	 *
+	 * @param {Number} lat The latitude of the start point
+	 * @param {Number} lng The longitude of the start point
+	 * @param {Number} brngIn The bearing in degrees
+	 * @param {Number} dist The distance in kms
+	 * @param {Number[]} point Receives the latitude and longitude of the destination
+	 */
+	static void rhumbDestinationPoint(double lat, double lng, double brngIn, double dist, double[] point) {
+	    final double d = dist / R;  // d = angular distance covered on earth's surface
+	    final double lat1 = toRad(lat), lon1 =toRad(lng);
+	    final double brng = toRad(brngIn);
+
+	    double lat2 = lat1 + d * Math.cos(brng);
+	    double dLat = lat2 - lat1;
+	    double dPhi = Math.log(Math.tan(lat2 / 2 + Math.PI / 4) / Math.tan(lat1 / 2 + Math.PI / 4));
+	    double q = (Math.abs(dLat) > DOUBLE_FUDGE) ? dLat / dPhi : Math.cos(lat1);
+	    double dLon = d * Math.sin(brng) / q;
+	    // check for going past the pole
+	    if (Math.abs(lat2) > Math.PI / 2) {
+	        lat2 = lat2 > 0 ? Math.PI - lat2 : - (Math.PI - lat2);
+	    }
+	    double lon2 = (lon1 + dLon + Math.PI) % (2 * Math.PI) - Math.PI;
+
+	    point[0] = toDeg(lat2);
+	    point[1] = toDeg(lon2);
+	}
+
+	/**
+	 * Bearing in degrees of the rhumb line from one point to another
+	 */
+	static double rhumbBearing(double lat1, double lng1, double lat2, double lng2) {
+		double dLon = toRad(lng2 - lng1);
+		double dPhi = Math.log(Math.tan(toRad(lat2) / (double)2 + Math.PI / (double)4) / Math.tan(toRad(lat1) / (double)2 + Math.PI / (double)4));
+		if (Math.abs(dLon) > Math.PI) {
+			dLon = dLon > 0 ? -((double)2 * Math.PI - dLon) : ((double)2 * Math.PI + dLon);
+		}
+		return toBrng(Math.atan2(dLon, dPhi));
+	}
+
 	/**
 	 * Extend the Number object to convert degrees to radians
 	 *
@@ -0,0 +1,231 @@
+package com.nuride.map;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import com.nuride.map.RouteBoxer.LatLng;
+import com.nuride.map.RouteBoxer.LatLngBounds;
+
+/**
+ * The boxes around a route together with the grid they were merged from, as
+ * returned by {@link RouteBoxer#corridor(List, double)}. A point is in the
+ * corridor when it lies in a cell the boxes cover, which is found from the
+ * grid lines in constant time however many boxes there are. Like the boxes, a
+ * cell includes its edges, so a point on a grid line is in the corridor if a
+ * covered cell lies on either side of it.
+ *
+ * Only the rows of the grid that hold marked cells are kept, each from its
+ * first to its last marked word of cells, so a corridor stays small even when
+ * the grid behind it was tiled. A corridor is immutable and can be shared
+ * between threads.
+ */
+public final class RouteCorridor {
+
+	private final List<LatLngBounds> boxes_;
+
+	// The grid lines, and the spacing between them used to guess the cell of a
+	//  point before checking it against the lines themselves. Longitude lines
+	//  that wrap past the antimeridian are kept 360 degrees further east, so
+	//  they rise from west_ to east_ all the way, which may be more than 360
+	//  degrees for a route that spans the world
+	private final double[] latLines_;
+	private final double[] lngLines_;
+	private final double latScale_;
+	private final double lngScale_;
+	private final double south_, north_, west_, east_;
+
+	// The marked cells a row at a time: row y is held in words
+	//  rowStart_[y] to rowStart_[y + 1] - 1 of bits_, starting from word
+	//  rowFirst_[y] of the row
+	private final int[] rowStart_;
+	private final int[] rowFirst_;
+	private final long[] bits_;
+
+	/**
+	 * Copy the grid lines and the cells covered by the boxes out of a context
+	 * that has just been boxed
+	 */
+	RouteCorridor(BoxContext ctx, List<LatLngBounds> boxes) {
+		boxes_ = boxes;
+
+		// Runs of cells stop short of the last row and column, so those are
+		//  never covered by a box
+		CellGrid grid = ctx.grid_;
+		int width = grid.width() - 1;
+		int height = grid.height() - 1;
+		latLines_ = Arrays.copyOf(ctx.latGrid_, height + 1);
+		lngLines_ = Arrays.copyOf(ctx.lngGrid_, width + 1);
+		for (int x = 1; x <= width; x++) {
+			while (lngLines_[x] < lngLines_[x - 1]) {
+				lngLines_[x] += 360;
+			}
+		}
+		south_ = latLines_[0];
+		north_ = latLines_[height];
+		west_ = lngLines_[0];
+		east_ = lngLines_[width];
+		latScale_ = height / (north_ - south_);
+		lngScale_ = width / (east_ - west_);
+
+		rowStart_ = new int[height + 1];
+		rowFirst_ = new int[height];
+		long[] bits = new long[64];
+		int words = 0;
+		for (int y = 0; y < height; y++) {
+			rowStart_[y] = words;
+			int x = grid.nextMarkedInRow(y, 0);
+			if (x >= width) {
+				continue;
+			}
+			int first = x >>> 6;
+			rowFirst_[y] = first;
+			for (int end; x < width; x = grid.nextMarkedInRow(y, end)) {
+				end = Math.min(grid.nextUnmarkedInRow(y, x), width);
+				int last = words + ((end - 1) >>> 6) - first;
+				if (last >= bits.length) {
+					bits = Arrays.copyOf(bits, Math.max(last + 1, 2 * bits.length));
+				}
+				for (int i = x; i < end; i++) {
+					bits[words + (i >>> 6) - first] |= 1L << i;
+				}
+				rowStart_[y + 1] = last + 1;
+			}
+			words = rowStart_[y + 1];
+		}
+		rowStart_[height] = words;
+		bits_ = Arrays.copyOf(bits, words);
+	}
+
+	/**
+	 * @return the boxes that cover the route, as {@link RouteBoxer#box(List, double)}
+	 *           would return them
+	 */
+	public List<LatLngBounds> getBoxes() {
+		return boxes_;
+	}
+
+	/**
+	 * @return whether the point lies in a cell covered by the boxes, edges
+	 *           included, as it would lie in one of the boxes
+	 */
+	public boolean contains(double lat, double lng) {
+		if (!(lat >= south_ && lat <= north_)) {
+			return false;
+		}
+
+		// The point may lie between the lines at lng or a whole turn east of it
+		for (lng -= 360 * Math.floor((lng - west_) / 360); lng <= east_; lng += 360) {
+			if (contains_(lat, lng)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean contains(LatLng latLng) {
+		return contains(latLng.lat, latLng.lng);
+	}
+
+	/**
+	 * @return whether the point, which lies between the grid lines, is in a
+	 *           covered cell or on the edge of one
+	 */
+	private boolean contains_(double lat, double lng) {
+		int y = cell_(latLines_, lat, (int) ((lat - south_) * latScale_));
+		int x = cell_(lngLines_, lng, (int) ((lng - west_) * lngScale_));
+
+		// On a grid line the cell found is the one to the north or east, so the
+		//  cells to the south and west are tried as well
+		int south = y > 0 && latLines_[y] == lat ? y - 1 : y;
+		int west = x > 0 && lngLines_[x] == lng ? x - 1 : x;
+		for (int j = south; j <= y; j++) {
+			for (int i = west; i <= x; i++) {
+				if (covered_(i, j)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Test every point of a batch against the corridor
+	 *
+	 * @return the points in the corridor, point i as bit i
+	 */
+	public BitSet filter(double[] lats, double[] lngs) {
+		if (lats.length != lngs.length) {
+			throw new IllegalArgumentException(lats.length + " latitudes but " + lngs.length + " longitudes");
+		}
+		long[] matches = new long[(lats.length + 63) >>> 6];
+		filter(lats, lngs, 0, lats.length, matches);
+		return BitSet.valueOf(matches);
+	}
+
+	/**
+	 * Test the points offset to offset + length - 1 of a batch against the
+	 *   corridor without allocating, so that a buffer can be reused from batch to
+	 *   batch
+	 *
+	 * @param matches Receives point offset + i as bit i, that is bit i % 64 of
+	 *           word i / 64; the words covering length points are overwritten
+	 * @return the number of points in the corridor
+	 */
+	public int filter(double[] lats, double[] lngs, int offset, int length, long[] matches) {
+		if (offset < 0 || length < 0 || offset > Math.min(lats.length, lngs.length) - length) {
+			throw new IndexOutOfBoundsException("offset " + offset + " length " + length);
+		}
+		if (matches.length < (length + 63) >>> 6) {
+			throw new IllegalArgumentException(length + " points but room for " + 64 * matches.length);
+		}
+		int count = 0;
+		long word = 0;
+		for (int i = 0; i < length; i++) {
+			if (contains(lats[offset + i], lngs[offset + i])) {
+				word |= 1L << i;
+				count++;
+			}
+			if ((i & 63) == 63) {
+				matches[i >>> 6] = word;
+				word = 0;
+			}
+		}
+		if ((length & 63) != 0) {
+			matches[length >>> 6] = word;
+		}
+		return count;
+	}
+
+	/**
+	 * @return whether cell x of row y is covered by a box
+	 */
+	private boolean covered_(int x, int y) {
+		int word = (x >>> 6) - rowFirst_[y];
+		int i = rowStart_[y] + word;
+		return word >= 0 && i < rowStart_[y + 1] && (bits_[i] & (1L << x)) != 0;
+	}
+
+	/**
+	 * Find the cell between the grid lines that holds value, starting from a
+	 *   guess that is at most a cell or so out. value must lie within the lines;
+	 *   one on a line is given the cell above it, or the last cell for the last
+	 *   line.
+	 */
+	private static int cell_(double[] lines, double value, int guess) {
+		int i = Math.max(0, Math.min(guess, lines.length - 2));
+		while (i > 0 && lines[i] > value) {
+			i--;
+		}
+		while (i < lines.length - 2 && lines[i + 1] <= value) {
+			i++;
+		}
+		return i;
+	}
+
+	@Override
+	public String toString() {
+		return "RouteCorridor[" + boxes_.size() + " boxes, grid " + (lngLines_.length - 1) + "x"
+				+ (latLines_.length - 1) + ", " + bits_.length + " words]";
+	}
+}
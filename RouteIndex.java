@@ -0,0 +1,489 @@
+package com.nuride.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.nuride.map.RouteBoxer.LatLngBounds;
+
+/**
+ * Index of the boxes of many routes, keyed by route id, answering which routes
+ * pass near a point or through an area.
+ *
+ * The world is divided into a uniform grid of cells a fixed number of degrees
+ * on a side. Each cell a route's boxes touch holds one entry for the route
+ * with the boxes that touch it, so a point query looks up a single cell and
+ * tests only the boxes of the routes that pass through it. A box, or an area
+ * queried, whose west is east of its east crosses the antimeridian, and
+ * touches the columns of cells on either side of it.
+ *
+ * Routes can be put and removed from any number of threads while queries run.
+ * Queries take no locks: each cell publishes its entries as an array that is
+ * replaced, never changed, on every update. A query running alongside an update
+ * of a route may find the route in some cells and not in others.
+ *
+ * @param <K> the type of the route ids, which must implement equals and hashCode
+ */
+public final class RouteIndex<K> {
+
+	private static final Entry[] NO_ENTRIES = new Entry[0];
+
+	private final double cellDegrees_;
+	private final int columns_;
+	private final ConcurrentHashMap<K, Route<K>> routes_ = new ConcurrentHashMap<K, Route<K>>();
+	private final ConcurrentHashMap<Long, Entry[]> cells_ = new ConcurrentHashMap<Long, Entry[]>();
+
+	/**
+	 * An index with cells of a tenth of a degree, about 11 km north to south
+	 */
+	public RouteIndex() {
+		this(0.1);
+	}
+
+	/**
+	 * @param cellDegrees The size of a cell in degrees. Cells of about the size
+	 *           of a box are best: smaller cells repeat each box in more cells,
+	 *           and larger ones test more boxes per query.
+	 */
+	public RouteIndex(double cellDegrees) {
+		if (!(cellDegrees > 0 && cellDegrees <= 180)) {
+			throw new IllegalArgumentException("cell size must be in (0, 180] degrees: " + cellDegrees);
+		}
+		cellDegrees_ = cellDegrees;
+		columns_ = (int) Math.ceil(360 / cellDegrees);
+	}
+
+	/**
+	 * Add a route, or replace the boxes of a route already in the index
+	 *
+	 * @param id The id of the route
+	 * @param boxes The boxes of the route, as returned by RouteBoxer.box()
+	 */
+	public void put(K id, List<LatLngBounds> boxes) {
+		final Route<K> route = new Route<K>(id, pack_(boxes));
+		// Updates of the same id are serialized, so the cells of the route replaced
+		//  are always unlinked
+		routes_.compute(id, (key, old) -> {
+			if (old != null) {
+				unlink_(old);
+			}
+			link_(route);
+			return route;
+		});
+	}
+
+	/**
+	 * Add a route from its corridor
+	 */
+	public void put(K id, RouteCorridor corridor) {
+		put(id, corridor.getBoxes());
+	}
+
+	/**
+	 * Change the boxes of a route in the index by the boxes a re-planned route
+	 *   added and removed, rewriting only the cells those boxes touch rather than
+	 *   every cell of the route
+	 *
+	 * @param id The id of the route
+	 * @param delta The change to the route's boxes, as returned by
+	 *           RouteBoxer.Plan.replace() for the boxes the route was put with
+	 * @return whether the route was in the index. A route that was not is not
+	 *           added.
+	 */
+	public boolean update(K id, final BoxDelta delta) {
+		if (delta.isEmpty()) {
+			return routes_.containsKey(id);
+		}
+		final boolean[] updated = new boolean[1];
+		routes_.computeIfPresent(id, (key, route) -> {
+			patch_(route, delta);
+			updated[0] = true;
+			return route;
+		});
+		return updated[0];
+	}
+
+	/**
+	 * @return whether the route was in the index
+	 */
+	public boolean remove(K id) {
+		final boolean[] removed = new boolean[1];
+		routes_.computeIfPresent(id, (key, old) -> {
+			unlink_(old);
+			removed[0] = true;
+			return null;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * @return the number of routes in the index
+	 */
+	public int size() {
+		return routes_.size();
+	}
+
+	/**
+	 * @return the number of cells that hold at least one route
+	 */
+	public int getCellCount() {
+		return cells_.size();
+	}
+
+	/**
+	 * @return the ids of the routes with a box that contains the point
+	 */
+	public List<K> query(double lat, double lng) {
+		List<K> ids = new ArrayList<K>();
+		Entry[] entries = cells_.get(cellKey_(row_(lat), column_(lng)));
+		if (entries == null) {
+			return ids;
+		}
+		// A route has one entry per cell, so no id is found twice
+		for (Entry entry : entries) {
+			if (contains_(entry.boxes_, lat, lng)) {
+				@SuppressWarnings("unchecked")
+				K id = ((Route<K>) entry.route_).id_;
+				ids.add(id);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * @return the ids of the routes with a box that intersects the bounds
+	 */
+	public List<K> query(LatLngBounds bounds) {
+		return query(bounds.getSouthWest().lat, bounds.getSouthWest().lng,
+				bounds.getNorthEast().lat, bounds.getNorthEast().lng);
+	}
+
+	/**
+	 * @return the ids of the routes with a box that intersects the area
+	 */
+	public List<K> query(double south, double west, double north, double east) {
+		List<K> ids = new ArrayList<K>();
+		Set<Route<?>> seen = new HashSet<Route<?>>();
+		int row0 = row_(south), row1 = row_(north);
+		int column0 = column_(west), column1 = lastColumn_(west, east);
+
+		// An area larger than the index is quicker to test route by route
+		if ((long) (row1 - row0 + 1) * (column1 - column0 + 1) > cells_.size()) {
+			for (Route<K> route : routes_.values()) {
+				if (intersects_(route.boxes_, south, west, north, east)) {
+					ids.add(route.id_);
+				}
+			}
+			return ids;
+		}
+
+		for (int row = row0; row <= row1; row++) {
+			for (int column = column0; column <= column1; column++) {
+				Entry[] entries = cells_.get(cellKey_(row, column % columns_));
+				if (entries == null) {
+					continue;
+				}
+				for (Entry entry : entries) {
+					if (!seen.contains(entry.route_) && intersects_(entry.boxes_, south, west, north, east)) {
+						seen.add(entry.route_);
+						@SuppressWarnings("unchecked")
+						K id = ((Route<K>) entry.route_).id_;
+						ids.add(id);
+					}
+				}
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Add an entry for the route to every cell its boxes touch, holding the boxes
+	 *   that touch that cell
+	 */
+	private void link_(Route<K> route) {
+		double[] boxes = route.boxes_;
+		int n = boxes.length / 4;
+		// For every cell, the boxes that touch it, in the order of the cells
+		List<long[]> touches = new ArrayList<long[]>();
+		for (int b = 0; b < n; b++) {
+			for (int row = row_(boxes[4 * b]), rowN = row_(boxes[4 * b + 2]); row <= rowN; row++) {
+				for (int column = column_(boxes[4 * b + 1]), columnN = lastColumn_(boxes[4 * b + 1], boxes[4 * b + 3]); column <= columnN; column++) {
+					touches.add(new long[] {cellKey_(row, column % columns_), b});
+				}
+			}
+		}
+		touches.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+		long[] keys = new long[touches.size()];
+		int cells = 0;
+		for (int i = 0, j; i < touches.size(); i = j) {
+			long key = touches.get(i)[0];
+			for (j = i + 1; j < touches.size() && touches.get(j)[0] == key; j++) {}
+			double[] cellBoxes = new double[4 * (j - i)];
+			for (int k = i; k < j; k++) {
+				System.arraycopy(boxes, 4 * (int) touches.get(k)[1], cellBoxes, 4 * (k - i), 4);
+			}
+			final Entry entry = new Entry(route, cellBoxes);
+			cells_.compute(key, (cell, entries) -> {
+				if (entries == null) {
+					return new Entry[] {entry};
+				}
+				Entry[] added = Arrays.copyOf(entries, entries.length + 1);
+				added[entries.length] = entry;
+				return added;
+			});
+			keys[cells++] = key;
+		}
+		route.cells_ = Arrays.copyOf(keys, cells);
+	}
+
+	/**
+	 * Replace the entries of the route in every cell that a removed or an added
+	 *   box touches with the boxes of the route that touch that cell now
+	 */
+	private void patch_(final Route<K> route, BoxDelta delta) {
+		final double[] removed = pack_(delta.getRemoved());
+		final double[] added = pack_(delta.getAdded());
+
+		// The cells to rewrite, with the removed and the added boxes that touch each
+		final Map<Long, List<Integer>> removedFrom = touches_(removed);
+		final Map<Long, List<Integer>> addedTo = touches_(added);
+		Set<Long> touched = new HashSet<Long>(removedFrom.keySet());
+		touched.addAll(addedTo.keySet());
+
+		final Set<Long> cells = new HashSet<Long>();
+		for (long key : route.cells_) {
+			cells.add(key);
+		}
+		for (Long key : touched) {
+			final List<Integer> removedHere = removedFrom.getOrDefault(key, Collections.<Integer>emptyList());
+			final List<Integer> boxes = addedTo.getOrDefault(key, Collections.<Integer>emptyList());
+			cells_.compute(key, (cell, entries) -> {
+				int at = -1;
+				for (int i = 0; entries != null && i < entries.length; i++) {
+					if (entries[i].route_ == route) {
+						at = i;
+					}
+				}
+
+				// The boxes kept in the cell, then the boxes added to it. A route can
+				//  have the same box twice, so each removed box drops one box only.
+				List<Integer> gone = new ArrayList<Integer>(removedHere);
+				double[] old = at < 0 ? new double[0] : entries[at].boxes_;
+				double[] cellBoxes = new double[old.length + 4 * boxes.size()];
+				int n = 0;
+				for (int i = 0; i < old.length; i += 4) {
+					if (!take_(removed, gone, old, i)) {
+						System.arraycopy(old, i, cellBoxes, n, 4);
+						n += 4;
+					}
+				}
+				for (int b : boxes) {
+					System.arraycopy(added, 4 * b, cellBoxes, n, 4);
+					n += 4;
+				}
+
+				if (n == 0) {
+					cells.remove(cell);
+					if (at < 0) {
+						return entries;
+					}
+					if (entries.length == 1) {
+						return null;
+					}
+					Entry[] dropped = new Entry[entries.length - 1];
+					System.arraycopy(entries, 0, dropped, 0, at);
+					System.arraycopy(entries, at + 1, dropped, at, entries.length - at - 1);
+					return dropped;
+				}
+				cells.add(cell);
+				Entry entry = new Entry(route, Arrays.copyOf(cellBoxes, n));
+				if (entries == null) {
+					return new Entry[] {entry};
+				}
+				Entry[] replaced = Arrays.copyOf(entries, at < 0 ? entries.length + 1 : entries.length);
+				replaced[at < 0 ? entries.length : at] = entry;
+				return replaced;
+			});
+		}
+
+		long[] keys = new long[cells.size()];
+		int i = 0;
+		for (long key : cells) {
+			keys[i++] = key;
+		}
+		route.cells_ = keys;
+		route.boxes_ = pack_(delta.getBoxes());
+	}
+
+	/**
+	 * @return for every cell that packed boxes touch, the boxes that touch it
+	 */
+	private Map<Long, List<Integer>> touches_(double[] boxes) {
+		Map<Long, List<Integer>> touches = new HashMap<Long, List<Integer>>();
+		for (int b = 0; b < boxes.length / 4; b++) {
+			for (int row = row_(boxes[4 * b]), rowN = row_(boxes[4 * b + 2]); row <= rowN; row++) {
+				for (int column = column_(boxes[4 * b + 1]), columnN = lastColumn_(boxes[4 * b + 1], boxes[4 * b + 3]); column <= columnN; column++) {
+					touches.computeIfAbsent(cellKey_(row, column % columns_), cell -> new ArrayList<Integer>()).add(b);
+				}
+			}
+		}
+		return touches;
+	}
+
+	/**
+	 * @return whether the box at i of packed boxes is one of the listed ones of
+	 *           other packed boxes, which is then taken off the list
+	 */
+	private static boolean take_(double[] boxes, List<Integer> listed, double[] box, int i) {
+		for (int j = 0; j < listed.size(); j++) {
+			int b = listed.get(j);
+			if (boxes[4 * b] == box[i] && boxes[4 * b + 1] == box[i + 1] && boxes[4 * b + 2] == box[i + 2]
+					&& boxes[4 * b + 3] == box[i + 3]) {
+				listed.remove(j);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove the entries of the route from every cell it was added to, dropping
+	 *   cells left empty
+	 */
+	private void unlink_(final Route<K> route) {
+		for (long key : route.cells_) {
+			cells_.computeIfPresent(key, (cell, entries) -> {
+				for (int i = 0; i < entries.length; i++) {
+					if (entries[i].route_ == route) {
+						if (entries.length == 1) {
+							return null;
+						}
+						Entry[] removed = new Entry[entries.length - 1];
+						System.arraycopy(entries, 0, removed, 0, i);
+						System.arraycopy(entries, i + 1, removed, i, entries.length - i - 1);
+						return removed;
+					}
+				}
+				return entries;
+			});
+		}
+		route.cells_ = new long[0];
+	}
+
+	/**
+	 * @return the boxes as south, west, north, east
+	 */
+	private static double[] pack_(List<LatLngBounds> boxes) {
+		double[] packed = new double[4 * boxes.size()];
+		int i = 0;
+		for (LatLngBounds bounds : boxes) {
+			packed[i++] = bounds.getSouthWest().lat;
+			packed[i++] = bounds.getSouthWest().lng;
+			packed[i++] = bounds.getNorthEast().lat;
+			packed[i++] = bounds.getNorthEast().lng;
+		}
+		return packed;
+	}
+
+	private int row_(double lat) {
+		return (int) Math.floor((lat + 90) / cellDegrees_);
+	}
+
+	/**
+	 * @return the column of cells of a longitude, taken a whole turn east or west
+	 *           if need be to lie in [-180, 180)
+	 */
+	private int column_(double lng) {
+		return (int) Math.floor((wrap_(lng) + 180) / cellDegrees_);
+	}
+
+	/**
+	 * @return the column of cells of the east edge of a box or area, counted on
+	 *           past the last column if the box crosses the antimeridian, so that
+	 *           it touches the columns from column_(west) to this one modulo the
+	 *           number of columns
+	 */
+	private int lastColumn_(double west, double east) {
+		int column = column_(east);
+		return wrap_(east) < wrap_(west) ? column + columns_ : column;
+	}
+
+	private static double wrap_(double lng) {
+		return lng - 360 * Math.floor((lng + 180) / 360);
+	}
+
+	private static Long cellKey_(int row, int column) {
+		return ((long) row << 32) | (column & 0xffffffffL);
+	}
+
+	private static boolean contains_(double[] boxes, double lat, double lng) {
+		for (int i = 0; i < boxes.length; i += 4) {
+			if (lat >= boxes[i] && lat <= boxes[i + 2] && within_(lng, boxes[i + 1], boxes[i + 3])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean intersects_(double[] boxes, double south, double west, double north, double east) {
+		for (int i = 0; i < boxes.length; i += 4) {
+			if (north >= boxes[i] && south <= boxes[i + 2]
+					&& (within_(west, boxes[i + 1], boxes[i + 3]) || within_(boxes[i + 1], west, east))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether a longitude lies from west to east, edges included, going
+	 *           east across the antimeridian if need be
+	 */
+	private static boolean within_(double lng, double west, double east) {
+		if (west <= east && west >= -180 && east < 180 && lng >= -180 && lng < 180) {
+			return lng >= west && lng <= east;
+		}
+		return lng - 360 * Math.floor((lng - west) / 360) <= (east < west ? east + 360 : east);
+	}
+
+	@Override
+	public String toString() {
+		return "RouteIndex[" + routes_.size() + " routes in " + cells_.size() + " cells of " + cellDegrees_ + " degrees]";
+	}
+
+	/**
+	 * A route in the index: its boxes as south, west, north, east and the keys of
+	 * the cells it was added to. The boxes are replaced as a whole when the route
+	 * is updated.
+	 */
+	private static final class Route<K> {
+		final K id_;
+		volatile double[] boxes_;
+		long[] cells_ = new long[0];
+
+		Route(K id, double[] boxes) {
+			id_ = id;
+			boxes_ = boxes;
+		}
+	}
+
+	/**
+	 * The boxes of a route that touch one cell
+	 */
+	private static final class Entry {
+		final Route<?> route_;
+		final double[] boxes_;
+
+		Entry(Route<?> route, double[] boxes) {
+			route_ = route;
+			boxes_ = boxes;
+		}
+	}
+}
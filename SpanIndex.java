@@ -0,0 +1,95 @@
+package com.nuride.map;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from a pair of ints, such as a run's span of cells (first
+ * and last cell), to a position, such as that of the run last started for that
+ * span, so that stacking a run onto the runs found so far needs one lookup
+ * rather than a scan of them all.
+ *
+ * The tables are reused across calls and only grow.
+ */
+final class SpanIndex {
+
+	private static final long EMPTY = -1L;
+
+	private long[] keys_ = newKeys(64);
+	private int[] values_ = new int[64];
+	private int size_;
+
+	private static long[] newKeys(int capacity) {
+		long[] keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		return keys;
+	}
+
+	void clear() {
+		if (size_ > 0) {
+			Arrays.fill(keys_, EMPTY);
+			size_ = 0;
+		}
+	}
+
+	/**
+	 * @return the value stored for the span, or -1 if there is none
+	 */
+	int get(int start, int end) {
+		long key = key(start, end);
+		int mask = keys_.length - 1;
+		for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+			if (keys_[i] == key) {
+				return values_[i];
+			}
+			if (keys_[i] == EMPTY) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Store a value for the span, replacing any previous one
+	 */
+	void put(int start, int end, int value) {
+		if (2 * (size_ + 1) > keys_.length) {
+			grow();
+		}
+		long key = key(start, end);
+		int mask = keys_.length - 1;
+		int i = slot(key, mask);
+		while (keys_[i] != EMPTY && keys_[i] != key) {
+			i = (i + 1) & mask;
+		}
+		if (keys_[i] == EMPTY) {
+			keys_[i] = key;
+			size_++;
+		}
+		values_[i] = value;
+	}
+
+	private void grow() {
+		long[] keys = keys_;
+		int[] values = values_;
+		keys_ = newKeys(keys.length * 2);
+		values_ = new int[keys.length * 2];
+		int mask = keys_.length - 1;
+		for (int j = 0; j < keys.length; j++) {
+			if (keys[j] != EMPTY) {
+				int i = slot(keys[j], mask);
+				while (keys_[i] != EMPTY) {
+					i = (i + 1) & mask;
+				}
+				keys_[i] = keys[j];
+				values_[i] = values[j];
+			}
+		}
+	}
+
+	private static long key(int start, int end) {
+		return ((long) start << 32) | (end & 0xffffffffL);
+	}
+
+	private static int slot(long key, int mask) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+	}
+}
@@ -0,0 +1,437 @@
+package com.nuride.map;
+
+import java.util.Arrays;
+
+/**
+ * Cell grid made of 64x64 cell tiles that are only allocated once the path marks
+ * a cell in them.
+ *
+ * A long route at a small range crosses a bounding box that is mostly empty, so
+ * memory here follows the number of cells the path touches rather than the area
+ * of its bounding box. Each tile holds its cells twice, 64 row words followed by
+ * 64 column words, and tiles are found through a hash of their tile coordinates.
+ * The merge passes only visit allocated tiles, taken in row or column order.
+ */
+final class SparseCellGrid extends CellGrid {
+
+	// 64 x 64 cells per tile, stored as 64 row words then 64 column words
+	private static final int TILE_WORDS = 128;
+
+	private long[] words_ = new long[16 * TILE_WORDS];
+	private int[] tileX_ = new int[16];
+	private int[] tileY_ = new int[16];
+	private int tiles_;
+	private int tilesAcross_;
+	private int tilesDown_;
+
+	// tile coordinates to tile number
+	private final SpanIndex index_ = new SpanIndex();
+
+	// the last tile looked up, as consecutive marks mostly land in the same tile
+	private int lastX_ = -1;
+	private int lastY_ = -1;
+	private int lastBase_ = -1;
+
+	// tile numbers ordered by row and by column, keyed in the upper 32 bits, with
+	//  the start of each row/column of tiles; rebuilt when tiles have been added
+	private long[] byRow_ = new long[16];
+	private long[] byCol_ = new long[16];
+	private int[] rowStart_ = new int[2];
+	private int[] colStart_ = new int[2];
+	private boolean sorted_;
+
+	// scratch for sorting the tiles: the tile numbers after the first pass, and
+	//  where the next tile of each row/column goes
+	private int[] pass_ = new int[16];
+	private int[] next_ = new int[2];
+
+	@Override
+	void reset(int width, int height) {
+		int tilesAcross = (width + 63) >>> 6;
+		int tilesDown = (height + 63) >>> 6;
+		if ((long) tilesAcross * tilesDown > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("grid of " + width + "x" + height + " cells is too large, use a larger range");
+		}
+		// words beyond the tiles in use are always left zeroed
+		Arrays.fill(words_, 0, tiles_ * TILE_WORDS, 0L);
+		tiles_ = 0;
+		index_.clear();
+		lastX_ = -1;
+		lastY_ = -1;
+		sorted_ = false;
+		width_ = width;
+		height_ = height;
+		tilesAcross_ = tilesAcross;
+		tilesDown_ = tilesDown;
+	}
+
+	/**
+	 * Enlarge the grid, keeping the cells marked so far. Cells can only be moved
+	 * by whole tiles, which just renumbers the tiles.
+	 *
+	 * @param width the new number of cells along the longitude axis
+	 * @param height the new number of cells along the latitude axis
+	 * @param tilesRight how many tiles to move the marked cells right by
+	 * @param tilesUp how many tiles to move the marked cells up by
+	 */
+	void grow(int width, int height, int tilesRight, int tilesUp) {
+		int tilesAcross = (width + 63) >>> 6;
+		int tilesDown = (height + 63) >>> 6;
+		if ((long) tilesAcross * tilesDown > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("grid of " + width + "x" + height + " cells is too large, use a larger range");
+		}
+		index_.clear();
+		for (int t = 0; t < tiles_; t++) {
+			tileX_[t] += tilesRight;
+			tileY_[t] += tilesUp;
+			index_.put(tileX_[t], tileY_[t], t);
+		}
+		lastX_ = -1;
+		lastY_ = -1;
+		sorted_ = false;
+		width_ = width;
+		height_ = height;
+		tilesAcross_ = tilesAcross;
+		tilesDown_ = tilesDown;
+	}
+
+	/**
+	 * Unmark every cell that is marked in another grid of the same size
+	 */
+	void subtract(SparseCellGrid other) {
+		for (int t = 0; t < tiles_; t++) {
+			int base = other.find(tileX_[t], tileY_[t]);
+			if (base >= 0) {
+				for (int i = 0, from = t * TILE_WORDS; i < TILE_WORDS; i++) {
+					words_[from + i] &= ~other.words_[base + i];
+				}
+			}
+		}
+	}
+
+	@Override
+	void trim(int maxWords) {
+		if (words_.length > maxWords) {
+			words_ = new long[16 * TILE_WORDS];
+			tileX_ = new int[16];
+			tileY_ = new int[16];
+			byRow_ = new long[16];
+			byCol_ = new long[16];
+			pass_ = new int[16];
+			tiles_ = 0;
+		}
+		reset(0, 0);
+	}
+
+	/**
+	 * @return the offset of the words of a tile, or -1 if it was never marked
+	 */
+	private int find(int tx, int ty) {
+		if (tx != lastX_ || ty != lastY_) {
+			int t = index_.get(tx, ty);
+			if (t < 0) {
+				return -1;
+			}
+			lastX_ = tx;
+			lastY_ = ty;
+			lastBase_ = t * TILE_WORDS;
+		}
+		return lastBase_;
+	}
+
+	/**
+	 * @return the offset of the words of a tile, allocating the tile if needed
+	 */
+	private int tile(int tx, int ty) {
+		int base = find(tx, ty);
+		if (base >= 0) {
+			return base;
+		}
+		int t = tiles_++;
+		if (t == tileX_.length) {
+			tileX_ = Arrays.copyOf(tileX_, 2 * t);
+			tileY_ = Arrays.copyOf(tileY_, 2 * t);
+			words_ = Arrays.copyOf(words_, 2 * t * TILE_WORDS);
+		}
+		tileX_[t] = tx;
+		tileY_[t] = ty;
+		index_.put(tx, ty, t);
+		sorted_ = false;
+		lastX_ = tx;
+		lastY_ = ty;
+		lastBase_ = t * TILE_WORDS;
+		return lastBase_;
+	}
+
+	@Override
+	boolean isMarked(int x, int y) {
+		int base = find(x >>> 6, y >>> 6);
+		return base >= 0 && (words_[base + (y & 63)] & (1L << x)) != 0;
+	}
+
+	@Override
+	long markedCells() {
+		long cells = 0;
+		for (int t = 0; t < tiles_; t++) {
+			for (int i = t * TILE_WORDS, n = i + 64; i < n; i++) {
+				cells += Long.bitCount(words_[i]);
+			}
+		}
+		return cells;
+	}
+
+	@Override
+	boolean markNeighbourhood(int x, int y) {
+		if (x < 1 || y < 1 || x + 1 >= width_ || y + 1 >= height_) {
+			// Clipped to the grid a cell at a time, which only happens at its edges
+			for (int row = Math.max(y - 1, 0), rowN = Math.min(y + 1, height_ - 1); row <= rowN; row++) {
+				for (int col = Math.max(x - 1, 0), colN = Math.min(x + 1, width_ - 1); col <= colN; col++) {
+					int base = tile(col >>> 6, row >>> 6);
+					words_[base + (row & 63)] |= 1L << col;
+					words_[base + 64 + (col & 63)] |= 1L << row;
+				}
+			}
+			return false;
+		}
+		for (int row = y - 1; row <= y + 1; row++) {
+			int from = x - 1;
+			int base = tile(from >>> 6, row >>> 6);
+			words_[base + (row & 63)] |= 7L << from;
+			if ((from & 63) > 61) {
+				base = tile((from >>> 6) + 1, row >>> 6);
+				words_[base + (row & 63)] |= 7L >>> (64 - (from & 63));
+			}
+		}
+		for (int col = x - 1; col <= x + 1; col++) {
+			int from = y - 1;
+			int base = tile(col >>> 6, from >>> 6);
+			words_[base + 64 + (col & 63)] |= 7L << from;
+			if ((from & 63) > 61) {
+				base = tile(col >>> 6, (from >>> 6) + 1);
+				words_[base + 64 + (col & 63)] |= 7L >>> (64 - (from & 63));
+			}
+		}
+		return true;
+	}
+
+	@Override
+	void clear(int x0, int y0, int x1, int y1) {
+		// Tiles that were never marked are already clear, and cleared tiles are kept
+		for (int ty = y0 >>> 6; ty <= y1 >>> 6; ty++) {
+			for (int tx = x0 >>> 6; tx <= x1 >>> 6; tx++) {
+				int base = find(tx, ty);
+				if (base < 0) {
+					continue;
+				}
+				int fromX = Math.max(x0, tx << 6), toX = Math.min(x1, (tx << 6) + 63);
+				int fromY = Math.max(y0, ty << 6), toY = Math.min(y1, (ty << 6) + 63);
+				long rowMask = ~((-1L << fromX) & (-1L >>> (63 - (toX & 63))));
+				long colMask = ~((-1L << fromY) & (-1L >>> (63 - (toY & 63))));
+				for (int row = fromY; row <= toY; row++) {
+					words_[base + (row & 63)] &= rowMask;
+				}
+				for (int col = fromX; col <= toX; col++) {
+					words_[base + 64 + (col & 63)] &= colMask;
+				}
+			}
+		}
+	}
+
+	@Override
+	void union(CellGrid other) {
+		SparseCellGrid that = (SparseCellGrid) other;
+		for (int t = 0; t < that.tiles_; t++) {
+			int base = tile(that.tileX_[t], that.tileY_[t]);
+			for (int i = 0, from = t * TILE_WORDS; i < TILE_WORDS; i++) {
+				words_[base + i] |= that.words_[from + i];
+			}
+		}
+	}
+
+	/**
+	 * Mark every cell that is marked here in a dense grid of the same size
+	 */
+	void unionInto(DenseCellGrid grid) {
+		for (int t = 0; t < tiles_; t++) {
+			grid.unionTile(tileX_[t], tileY_[t], words_, t * TILE_WORDS);
+		}
+	}
+
+	/**
+	 * Order the tiles by row and by column for the merge passes. Each order is a
+	 * counting sort in two passes, by the minor axis and then by the major one,
+	 * from the counts of tiles in each row and column, since Arrays.sort
+	 * allocates on every call.
+	 */
+	private void sort() {
+		if (sorted_) {
+			return;
+		}
+		if (byRow_.length < tiles_) {
+			byRow_ = new long[tileX_.length];
+			byCol_ = new long[tileX_.length];
+			pass_ = new int[tileX_.length];
+		}
+		if (next_.length < Math.max(tilesDown_, tilesAcross_)) {
+			next_ = new int[Math.max(tilesDown_, tilesAcross_)];
+		}
+		if (rowStart_.length < tilesDown_ + 1) {
+			rowStart_ = new int[tilesDown_ + 1];
+		}
+		if (colStart_.length < tilesAcross_ + 1) {
+			colStart_ = new int[tilesAcross_ + 1];
+		}
+		Arrays.fill(rowStart_, 0, tilesDown_ + 1, 0);
+		Arrays.fill(colStart_, 0, tilesAcross_ + 1, 0);
+		for (int t = 0; t < tiles_; t++) {
+			rowStart_[tileY_[t] + 1]++;
+			colStart_[tileX_[t] + 1]++;
+		}
+		for (int i = 0; i < tilesDown_; i++) {
+			rowStart_[i + 1] += rowStart_[i];
+		}
+		for (int i = 0; i < tilesAcross_; i++) {
+			colStart_[i + 1] += colStart_[i];
+		}
+		order(byRow_, tileY_, rowStart_, tilesDown_, tileX_, colStart_, tilesAcross_);
+		order(byCol_, tileX_, colStart_, tilesAcross_, tileY_, rowStart_, tilesDown_);
+		sorted_ = true;
+	}
+
+	/**
+	 * Order the tiles by major and then minor tile coordinate, keyed by
+	 * major * minorTiles + minor
+	 *
+	 * @param majorStart the start of each of the majorTiles lines along the major axis
+	 * @param minorStart the start of each of the minorTiles lines along the minor axis
+	 */
+	private void order(long[] order, int[] major, int[] majorStart, int majorTiles, int[] minor, int[] minorStart,
+			int minorTiles) {
+		System.arraycopy(minorStart, 0, next_, 0, minorTiles);
+		for (int t = 0; t < tiles_; t++) {
+			pass_[next_[minor[t]]++] = t;
+		}
+		// tiles taken in minor order stay in that order within each major line
+		System.arraycopy(majorStart, 0, next_, 0, majorTiles);
+		for (int i = 0; i < tiles_; i++) {
+			int t = pass_[i];
+			order[next_[major[t]]++] = (((long) major[t] * minorTiles + minor[t]) << 32) | t;
+		}
+	}
+
+	/**
+	 * @return the first position in [lo, hi) whose key is at least key
+	 */
+	private static int lowerBound(long[] order, int lo, int hi, long key) {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if ((order[mid] >>> 32) < key) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	@Override
+	int nextRowInUse(int y) {
+		sort();
+		for (int ty = y >>> 6; ty < tilesDown_ && y < height_; ty++) {
+			if (rowStart_[ty] < rowStart_[ty + 1]) {
+				return Math.max(y, ty << 6);
+			}
+		}
+		return height_;
+	}
+
+	@Override
+	int nextColumnInUse(int x) {
+		sort();
+		for (int tx = x >>> 6; tx < tilesAcross_ && x < width_; tx++) {
+			if (colStart_[tx] < colStart_[tx + 1]) {
+				return Math.max(x, tx << 6);
+			}
+		}
+		return width_;
+	}
+
+	@Override
+	int nextMarkedInRow(int y, int from) {
+		sort();
+		int ty = y >>> 6;
+		return nextMarked(byRow_, rowStart_[ty], rowStart_[ty + 1], (long) ty * tilesAcross_, tileX_, y & 63, width_, from);
+	}
+
+	@Override
+	int nextUnmarkedInRow(int y, int from) {
+		sort();
+		int ty = y >>> 6;
+		return nextUnmarked(byRow_, rowStart_[ty], rowStart_[ty + 1], (long) ty * tilesAcross_, tileX_, y & 63, width_, from);
+	}
+
+	@Override
+	int nextMarkedInColumn(int x, int from) {
+		sort();
+		int tx = x >>> 6;
+		return nextMarked(byCol_, colStart_[tx], colStart_[tx + 1], (long) tx * tilesDown_, tileY_, 64 + (x & 63), height_, from);
+	}
+
+	@Override
+	int nextUnmarkedInColumn(int x, int from) {
+		sort();
+		int tx = x >>> 6;
+		return nextUnmarked(byCol_, colStart_[tx], colStart_[tx + 1], (long) tx * tilesDown_, tileY_, 64 + (x & 63), height_, from);
+	}
+
+	/**
+	 * Search one row or column for a marked cell, visiting only the tiles that
+	 * exist along it
+	 *
+	 * @param order tiles in row or column order
+	 * @param lo first tile of this row or column of tiles
+	 * @param hi end of this row or column of tiles
+	 * @param key sort key of the first tile in this row or column of tiles
+	 * @param along tile coordinate along the row or column, by tile number
+	 * @param word offset of the row or column word within a tile
+	 * @param length number of cells in the row or column
+	 * @param from the first cell to consider
+	 */
+	private int nextMarked(long[] order, int lo, int hi, long key, int[] along, int word, int length, int from) {
+		if (from >= length) {
+			return length;
+		}
+		for (int i = lowerBound(order, lo, hi, key + (from >>> 6)); i < hi; i++) {
+			int t = (int) order[i];
+			long bits = words_[t * TILE_WORDS + word];
+			if (along[t] == from >>> 6) {
+				bits &= -1L << from;
+			}
+			if (bits != 0) {
+				return Math.min(length, (along[t] << 6) + Long.numberOfTrailingZeros(bits));
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Search one row or column for an unmarked cell. A tile missing from the row
+	 * or column has no marked cells at all.
+	 */
+	private int nextUnmarked(long[] order, int lo, int hi, long key, int[] along, int word, int length, int from) {
+		if (from >= length) {
+			return length;
+		}
+		int next = from >>> 6;
+		long mask = -1L << from;
+		for (int i = lowerBound(order, lo, hi, key + next); ; i++, next++, mask = -1L) {
+			if (i == hi || along[(int) order[i]] != next) {
+				return Math.min(length, Math.max(from, next << 6));
+			}
+			long bits = ~words_[(int) order[i] * TILE_WORDS + word] & mask;
+			if (bits != 0) {
+				return Math.min(length, (next << 6) + Long.numberOfTrailingZeros(bits));
+			}
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package com.nuride.map;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+import com.nuride.map.RouteBoxer.LatLngBounds;
+
+/**
+ * A file of GPS traces stored as packed doubles, boxed straight from memory
+ * mapped windows of the file rather than read onto the heap first.
+ *
+ * The file is a sequence of traces, each a 64 bit vertex count n followed by n
+ * pairs of 64 bit latitude and longitude, all in the byte order given when the
+ * file is opened (big endian by default). A file of a single trace with no
+ * count, or any other layout, can still be boxed a segment at a time with
+ * {@link #box(RouteBoxer, long, int, double)}.
+ *
+ * Files of any size can be boxed with {@link #boxAll(RouteBoxer, double, Handler)},
+ * which maps one window of the file at a time and hands each trace's boxes to
+ * a handler as it goes, so that heap use does not grow with the file. It
+ * copies the vertices of each trace from the mapping into a pair of arrays of
+ * its own, which grow to the longest trace and are reused for every trace; a
+ * single segment is copied into the boxer's pooled scratch arrays. Vertices
+ * are never turned into objects.
+ */
+public final class TraceFile implements Closeable {
+
+	// Bytes mapped at a time by boxAll, unless a single trace needs more
+	private static final int WINDOW_BYTES = 1 << 28;
+
+	/**
+	 * Receives the boxes of each trace of a file
+	 */
+	public interface Handler {
+		/**
+		 * @param trace The number of the trace in the file, from 0
+		 * @param position The byte position of the trace's vertex count
+		 * @param vertices The number of vertices of the trace
+		 * @param boxes The boxes of the trace, empty if it has no vertices
+		 */
+		void boxed(long trace, long position, int vertices, List<LatLngBounds> boxes);
+	}
+
+	private final FileChannel channel_;
+	private final ByteOrder order_;
+	private final int windowBytes_;
+
+	private TraceFile(FileChannel channel, ByteOrder order, int windowBytes) {
+		channel_ = channel;
+		order_ = order;
+		windowBytes_ = windowBytes;
+	}
+
+	/**
+	 * Open a big endian trace file for reading
+	 */
+	public static TraceFile open(Path path) throws IOException {
+		return open(path, ByteOrder.BIG_ENDIAN);
+	}
+
+	public static TraceFile open(Path path, ByteOrder order) throws IOException {
+		return open(path, order, WINDOW_BYTES);
+	}
+
+	static TraceFile open(Path path, ByteOrder order, int windowBytes) throws IOException {
+		return new TraceFile(FileChannel.open(path, StandardOpenOption.READ), order, windowBytes);
+	}
+
+	/**
+	 * @return the size of the file in bytes
+	 */
+	public long size() throws IOException {
+		return channel_.size();
+	}
+
+	/**
+	 * Box a segment of the file holding interleaved latitudes and longitudes
+	 *
+	 * @param boxer The boxer to use
+	 * @param position The byte position of the latitude of the first vertex
+	 * @param vertices The number of vertices to box
+	 * @param range The distance in kms around the route that the generated boxes
+	 *           must cover.
+	 * @return The boxes that cover the segment
+	 */
+	public List<LatLngBounds> box(RouteBoxer boxer, long position, int vertices, double range) throws IOException {
+		long bytes = 16L * vertices;
+		if (vertices < 0 || position < 0 || bytes > Integer.MAX_VALUE || position + bytes > channel_.size()) {
+			throw new IndexOutOfBoundsException("segment of " + vertices + " vertices at " + position
+					+ " in a file of " + channel_.size() + " bytes");
+		}
+		DoubleBuffer latLngs = channel_.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(order_).asDoubleBuffer();
+		return boxer.box(latLngs, 0, vertices, range);
+	}
+
+	/**
+	 * Box every trace in the file in turn
+	 *
+	 * @param boxer The boxer to use
+	 * @param range The distance in kms around each trace that its boxes must
+	 *           cover.
+	 * @param handler Receives the boxes of each trace
+	 * @return the number of traces boxed
+	 * @throws IOException if the file cannot be read, or ends part way through
+	 *           a trace
+	 */
+	public long boxAll(RouteBoxer boxer, double range, Handler handler) throws IOException {
+		final long size = channel_.size();
+		ByteBuffer window = null;
+		DoubleBuffer doubles = null;
+		long windowStart = 0;
+		// The vertices of the trace being boxed. The boxer's pooled arrays are
+		//  dropped after any call on a trace of more than about a million
+		//  vertices, so these are kept across traces instead.
+		double[] lats = new double[0], lngs = new double[0];
+		long trace = 0;
+		for (long position = 0; position < size; trace++) {
+			if (size - position < 8) {
+				throw new IOException("trace file ends part way through the count of trace " + trace + " at " + position);
+			}
+			// Map the next window from this trace on once it runs past the current
+			//  one. Traces start 8 byte aligned within a window, so the doubles view
+			//  indexes their vertices directly.
+			if (window == null || position + 8 > windowStart + window.capacity()) {
+				window = map_(position, Math.min(size - position, windowBytes_));
+				doubles = window.asDoubleBuffer();
+				windowStart = position;
+			}
+			long count = window.getLong((int) (position - windowStart));
+			if (count < 0 || count > (Integer.MAX_VALUE - 8) / 16) {
+				throw new IOException("trace " + trace + " at " + position + " has a bad vertex count " + count);
+			}
+			long bytes = 8 + 16 * count;
+			if (position + bytes > size) {
+				throw new IOException("trace file ends part way through trace " + trace + " at " + position);
+			}
+			if (position + bytes > windowStart + window.capacity()) {
+				window = map_(position, Math.max(bytes, Math.min(size - position, windowBytes_)));
+				doubles = window.asDoubleBuffer();
+				windowStart = position;
+			}
+			int vertices = (int) count;
+			if (lats.length < vertices) {
+				lats = new double[Math.max(vertices, 2 * lats.length)];
+				lngs = new double[lats.length];
+			}
+			for (int i = 0, j = (int) ((position - windowStart) / 8) + 1; i < vertices; i++, j += 2) {
+				lats[i] = doubles.get(j);
+				lngs[i] = doubles.get(j + 1);
+			}
+			List<LatLngBounds> boxes = vertices == 0 ? Collections.<LatLngBounds>emptyList()
+					: boxer.box(lats, lngs, 0, vertices, range);
+			handler.boxed(trace, position, vertices, boxes);
+			position += bytes;
+		}
+		return trace;
+	}
+
+	private ByteBuffer map_(long position, long bytes) throws IOException {
+		return channel_.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(order_);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel_.close();
+	}
+
+	@Override
+	public String toString() {
+		return "TraceFile[" + order_ + "]";
+	}
+}
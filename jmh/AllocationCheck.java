@@ -0,0 +1,52 @@
+package com.nuride.map;
+
+import java.util.Collection;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the phases and entry points that should produce no
+ * garbage with the GC profiler, and fails if any of them allocates more than
+ * LIMIT bytes per call once warmed up. Tracing the route, merging its cells,
+ * and boxing into a packed array or a sink all qualify; returning a list of
+ * boxes does not. Any JMH command line options are passed through.
+ */
+public class AllocationCheck {
+
+	// Bytes per call allowed for the fixed bookkeeping of a call, such as the
+	//  tasks of a route traced in parallel, but far below one object per vertex
+	private static final double LIMIT = 1024;
+
+	public static void main(String[] args) throws Exception {
+		Collection<RunResult> results = new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.include("PhaseBenchmark\\.(findIntersectingCells|mergeIntersectingCells)$")
+				.include("BoxBenchmark\\.box(Packed|Sink)$")
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+
+		int failed = 0;
+		for (RunResult result : results) {
+			Result<?> allocated = result.getSecondaryResults().get("gc.alloc.rate.norm");
+			String name = result.getParams().getBenchmark() + " " + result.getParams().getParam("fixture")
+					+ " " + result.getParams().getParam("range");
+			if (allocated == null) {
+				System.out.println("NO ALLOCATION RESULT " + name);
+				failed++;
+			} else if (allocated.getScore() > LIMIT) {
+				System.out.println("ALLOCATES " + allocated.getScore() + " bytes/op " + name);
+				failed++;
+			}
+		}
+		System.out.println(failed == 0 ? "All " + results.size() + " runs within " + LIMIT + " bytes/op"
+				: failed + " of " + results.size() + " runs over " + LIMIT + " bytes/op");
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+}
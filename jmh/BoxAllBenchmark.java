@@ -0,0 +1,89 @@
+package com.nuride.map;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nuride.map.RouteBoxer.LatLng;
+import com.nuride.map.RouteBoxer.LatLngBounds;
+
+/**
+ * Throughput of {@link RouteBoxer#boxAll(List, double, ForkJoinPool)} against
+ * the number of worker threads, in routes boxed per second. Near-linear
+ * scaling shows up as the score growing with the threads parameter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BoxAllBenchmark {
+
+	private static final int ROUTES = 2000;
+
+	@Param({"1", "2", "4", "8", "16"})
+	public int threads;
+
+	@Param({"1"})
+	public double range;
+
+	private final RouteBoxer boxer = new RouteBoxer();
+	private List<List<LatLng>> routes;
+	private ForkJoinPool pool;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(42);
+		routes = new ArrayList<List<LatLng>>(ROUTES);
+		for (int i = 0; i < ROUTES; i++) {
+			routes.add(trip(random));
+		}
+		pool = new ForkJoinPool(threads);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROUTES)
+	public List<List<LatLngBounds>> boxAll() {
+		return boxer.boxAll(routes, range, pool);
+	}
+
+	/**
+	 * A city trip of a few hundred points wandering up to some tens of kms
+	 */
+	private static List<LatLng> trip(Random random) {
+		int points = 100 + random.nextInt(400);
+		List<LatLng> trip = new ArrayList<LatLng>(points);
+		double lat = 40 + random.nextDouble(), lng = -74 + random.nextDouble();
+		double heading = random.nextDouble() * 2 * Math.PI;
+		for (int i = 0; i < points; i++) {
+			heading += (random.nextDouble() - 0.5) * 0.6;
+			lat += 0.0005 * Math.cos(heading);
+			lng += 0.0007 * Math.sin(heading);
+			trip.add(new LatLng(lat, lng));
+		}
+		return trip;
+	}
+}
@@ -0,0 +1,93 @@
+package com.nuride.map;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nuride.map.RouteBoxer.LatLng;
+import com.nuride.map.RouteBoxer.LatLngBounds;
+
+/**
+ * Time per call of the public box() entry points on each fixture and range.
+ * The packed and sink entry points hand back no objects, so run with the GC
+ * profiler their bytes allocated per call are those of boxing alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BoxBenchmark {
+
+	@Param({"URBAN", "HIGHWAY", "GPS_TRACE", "ANTIMERIDIAN", "HIGH_LATITUDE"})
+	public RouteFixture fixture;
+
+	@Param({"0.5", "2", "10"})
+	public double range;
+
+	private final RouteBoxer boxer = new RouteBoxer();
+	private List<LatLng> path;
+	private double[] lats;
+	private double[] lngs;
+	private double[] boxes = new double[4096];
+	private final Sum sum = new Sum();
+
+	/**
+	 * Adds up the coordinates of the boxes it is given, so they are not dead code
+	 */
+	static final class Sum implements BoxSink {
+		double total;
+
+		@Override
+		public void box(double south, double west, double north, double east) {
+			total += south + west + north + east;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		path = fixture.path();
+		double[][] coordinates = fixture.coordinates();
+		lats = coordinates[0];
+		lngs = coordinates[1];
+	}
+
+	@Benchmark
+	public List<LatLngBounds> boxList() {
+		return boxer.box(path, range);
+	}
+
+	@Benchmark
+	public List<LatLngBounds> boxArrays() {
+		return boxer.box(lats, lngs, range);
+	}
+
+	@Benchmark
+	public double[] boxPacked() {
+		int n = boxer.box(lats, lngs, 0, lats.length, range, boxes, 0);
+		if (4 * n > boxes.length) {
+			boxes = new double[8 * n];
+			boxer.box(lats, lngs, 0, lats.length, range, boxes, 0);
+		}
+		return boxes;
+	}
+
+	@Benchmark
+	public double boxSink() {
+		boxer.box(lats, lngs, 0, lats.length, range, sum);
+		return sum.total;
+	}
+}
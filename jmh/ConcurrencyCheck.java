@@ -0,0 +1,125 @@
+package com.nuride.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.nuride.map.RouteBoxer.LatLng;
+import com.nuride.map.RouteBoxer.LatLngBounds;
+import com.nuride.map.RouteBoxer.MergeStrategy;
+
+/**
+ * Boxes the route fixtures from many threads at once through one shared
+ * RouteBoxer, and fails if any call returns boxes other than those the same
+ * call returned when made from a single thread. Every thread draws its calls
+ * at random over fixtures, ranges, merge strategies and the list and array
+ * forms of box(), so pooled contexts are handed from grids of one size to
+ * grids of another as they would be in a server. Takes the number of threads
+ * and the calls per thread, 64 and 200 by default.
+ */
+public class ConcurrencyCheck {
+
+	private static final double[] RANGES = {1, 5};
+
+	public static void main(String[] args) throws Exception {
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		final int calls = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		final RouteBoxer boxer = new RouteBoxer();
+
+		// Every call, with the boxes it returns from a single thread
+		final List<Call> expected = new ArrayList<Call>();
+		for (RouteFixture fixture : RouteFixture.values()) {
+			List<LatLng> path = fixture.path();
+			double[][] coordinates = fixture.coordinates();
+			for (double range : RANGES) {
+				for (MergeStrategy strategy : MergeStrategy.values()) {
+					for (boolean arrays : new boolean[] {false, true}) {
+						Call call = new Call(fixture, arrays ? null : path, coordinates, range, strategy);
+						call.boxes_ = call.box(boxer);
+						expected.add(call);
+					}
+				}
+			}
+		}
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger mismatches = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> workers = new ArrayList<Future<?>>();
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(t);
+			workers.add(pool.submit(() -> {
+				start.await();
+				for (int i = 0; i < calls; i++) {
+					Call call = expected.get(random.nextInt(expected.size()));
+					if (!Arrays.equals(call.boxes_, call.box(boxer)) && mismatches.incrementAndGet() <= 10) {
+						System.out.println("MISMATCH " + call);
+					}
+				}
+				return null;
+			}));
+		}
+		start.countDown();
+		for (Future<?> worker : workers) {
+			worker.get();
+		}
+		pool.shutdown();
+
+		long total = (long) threads * calls;
+		System.out.println(mismatches.get() + " of " + total + " calls from " + threads
+				+ " threads differ from a single thread");
+		if (mismatches.get() > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * One call of box(), given the route as a list of vertices or, if there is no
+	 * list, as arrays
+	 */
+	private static final class Call {
+		final RouteFixture fixture_;
+		final List<LatLng> path_;
+		final double[][] coordinates_;
+		final double range_;
+		final MergeStrategy strategy_;
+		double[] boxes_;
+
+		Call(RouteFixture fixture, List<LatLng> path, double[][] coordinates, double range, MergeStrategy strategy) {
+			fixture_ = fixture;
+			path_ = path;
+			coordinates_ = coordinates;
+			range_ = range;
+			strategy_ = strategy;
+		}
+
+		/**
+		 * @return the boxes as south, west, north, east
+		 */
+		double[] box(RouteBoxer boxer) {
+			List<LatLngBounds> boxes = path_ != null
+					? boxer.box(path_, range_, strategy_)
+					: boxer.box(coordinates_[0], coordinates_[1], 0, coordinates_[0].length, range_, strategy_);
+			double[] packed = new double[4 * boxes.size()];
+			int i = 0;
+			for (LatLngBounds bounds : boxes) {
+				packed[i++] = bounds.getSouthWest().lat;
+				packed[i++] = bounds.getSouthWest().lng;
+				packed[i++] = bounds.getNorthEast().lat;
+				packed[i++] = bounds.getNorthEast().lng;
+			}
+			return packed;
+		}
+
+		@Override
+		public String toString() {
+			return fixture_ + " " + range_ + " " + strategy_ + (path_ != null ? " list" : " arrays");
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.nuride.map;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nuride.map.RouteBoxer.LatLng;
+import com.nuride.map.RouteBoxer.LatLngBounds;
+
+/**
+ * Points tested per second against the corridor around a route, as a batch
+ * through the corridor and by a scan of its boxes. The points are spread
+ * evenly over the bounds of the route.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CorridorBenchmark {
+
+	private static final int POINTS = 1 << 16;
+
+	@Param({"URBAN", "HIGHWAY", "GPS_TRACE", "HIGH_LATITUDE"})
+	public RouteFixture fixture;
+
+	@Param({"0.5", "2", "10"})
+	public double range;
+
+	private RouteCorridor corridor;
+	private List<LatLngBounds> boxes;
+	private final double[] lats = new double[POINTS];
+	private final double[] lngs = new double[POINTS];
+	private final long[] matches = new long[POINTS / 64];
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		double[][] coordinates = fixture.coordinates();
+		corridor = new RouteBoxer().corridor(coordinates[0], coordinates[1], 0, coordinates[0].length, range);
+		boxes = corridor.getBoxes();
+
+		double south = 90, north = -90, west = 180, east = -180;
+		for (int i = 0; i < coordinates[0].length; i++) {
+			south = Math.min(south, coordinates[0][i]);
+			north = Math.max(north, coordinates[0][i]);
+			west = Math.min(west, coordinates[1][i]);
+			east = Math.max(east, coordinates[1][i]);
+		}
+		Random random = new Random(42);
+		for (int i = 0; i < POINTS; i++) {
+			lats[i] = south + (north - south) * random.nextDouble();
+			lngs[i] = west + (east - west) * random.nextDouble();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POINTS)
+	public int filter() {
+		return corridor.filter(lats, lngs, 0, POINTS, matches);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POINTS)
+	public int scanBoxes() {
+		int count = 0;
+		for (int i = 0; i < POINTS; i++) {
+			LatLng point = new LatLng(lats[i], lngs[i]);
+			for (LatLngBounds box : boxes) {
+				if (box.contains(point)) {
+					count++;
+					break;
+				}
+			}
+		}
+		return count;
+	}
+}
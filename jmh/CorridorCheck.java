@@ -0,0 +1,140 @@
+package com.nuride.map;
+
+import java.util.List;
+import java.util.Random;
+
+import com.nuride.map.RouteBoxer.LatLngBounds;
+
+/**
+ * Tests points against the corridors of random routes, half of them up against
+ * the antimeridian so that their grid lines wrap past it, and exits with an
+ * error if the corridor does not answer as a scan of its boxes does, edges
+ * included, or if it leaves out a vertex of the route. The points are drawn in
+ * and around the boxes, and on their edges and corners. Takes the number of
+ * routes, 1000 by default.
+ *
+ * The routes do not cross the antimeridian, since the bounds of one that does
+ * are taken to span the world.
+ */
+public class CorridorCheck {
+
+	private static final int POINTS = 256;
+
+	public static void main(String[] args) {
+		int routes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		Random random = new Random(16);
+		RouteBoxer boxer = new RouteBoxer();
+		int mismatches = 0;
+		long points = 0;
+
+		// A route that ends just short of the antimeridian, whose grid lines wrap
+		//  past it, and the fixture that runs up to it
+		double[][] edge = new double[2][21];
+		for (int i = 0; i < 21; i++) {
+			edge[0][i] = 10;
+			edge[1][i] = 179.5 + 0.0249 * i;
+		}
+		mismatches += check(boxer, "EDGE", edge, 5, random);
+		points += POINTS + edge[0].length;
+		for (double range : new double[] {0.5, 2, 10}) {
+			double[][] route = RouteFixture.ANTIMERIDIAN.coordinates();
+			mismatches += check(boxer, "ANTIMERIDIAN", route, range, random);
+			points += POINTS + route[0].length;
+		}
+
+		for (int r = 0; r < routes; r++) {
+			double[][] route;
+			do {
+				double lng = r % 2 == 0 ? 175 + 10 * random.nextDouble() : -150 + 300 * random.nextDouble();
+				route = RouteFixture.walk(random, -60 + 120 * random.nextDouble(),
+						lng >= 180 ? lng - 360 : lng, new double[] {0.005, 0.05}[r % 4 / 2], true);
+			} while (RouteFixture.crosses(route[1]));
+			double range = 0.2 + 5 * random.nextDouble();
+			mismatches += check(boxer, "route " + r, route, range, random);
+			points += POINTS + route[0].length;
+		}
+		System.out.println(mismatches + " of " + points + " points tested against " + (routes + 4)
+				+ " corridors differ from a scan of their boxes");
+		if (mismatches > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return the number of vertices left out of the corridor and of points it
+	 *           holds or leaves out unlike its boxes
+	 */
+	private static int check(RouteBoxer boxer, String name, double[][] route, double range, Random random) {
+		int n = route[0].length;
+		RouteCorridor corridor = boxer.corridor(route[0], route[1], 0, n, range);
+		List<LatLngBounds> boxes = corridor.getBoxes();
+		int mismatches = 0;
+		for (int i = 0; i < n; i++) {
+			if (!corridor.contains(route[0][i], route[1][i])) {
+				mismatches += report(name + " at range " + range + ": vertex " + i, route[0][i], route[1][i], true);
+			}
+		}
+
+		// Points in and around a box, on one of its edges, or on a corner
+		double[] lats = new double[POINTS];
+		double[] lngs = new double[POINTS];
+		for (int i = 0; i < POINTS; i++) {
+			LatLngBounds box = boxes.get(random.nextInt(boxes.size()));
+			double south = box.getSouthWest().lat, north = box.getNorthEast().lat;
+			double west = box.getSouthWest().lng, east = box.getNorthEast().lng;
+			double width = east < west ? east + 360 - west : east - west;
+			switch (i % 4) {
+			case 0:
+				lats[i] = south + (north - south) * (3 * random.nextDouble() - 1);
+				lngs[i] = west + width * (3 * random.nextDouble() - 1);
+				break;
+			case 1:
+				lats[i] = random.nextBoolean() ? south : north;
+				lngs[i] = west + width * random.nextDouble();
+				break;
+			case 2:
+				lats[i] = south + (north - south) * random.nextDouble();
+				lngs[i] = random.nextBoolean() ? west : east;
+				break;
+			default:
+				lats[i] = random.nextBoolean() ? south : north;
+				lngs[i] = random.nextBoolean() ? west : east;
+			}
+			lngs[i] = lngs[i] >= 180 ? lngs[i] - 360 : lngs[i] < -180 ? lngs[i] + 360 : lngs[i];
+		}
+		long[] matches = new long[POINTS / 64];
+		corridor.filter(lats, lngs, 0, POINTS, matches);
+		for (int i = 0; i < POINTS; i++) {
+			boolean expected = scan(boxes, lats[i], lngs[i]);
+			if (((matches[i >>> 6] >>> i) & 1) != (expected ? 1 : 0)) {
+				mismatches += report(name + " at range " + range + ": point " + i, lats[i], lngs[i], expected);
+			}
+		}
+		return mismatches;
+	}
+
+	/**
+	 * @return whether any box holds the point, edges included, taking a box
+	 *           whose west is east of its east to cross the antimeridian and
+	 *           longitudes a whole turn apart to be the same
+	 */
+	private static boolean scan(List<LatLngBounds> boxes, double lat, double lng) {
+		for (LatLngBounds box : boxes) {
+			double west = box.getSouthWest().lng, east = box.getNorthEast().lng;
+			if (east < west) {
+				east += 360;
+			}
+			if (lat >= box.getSouthWest().lat && lat <= box.getNorthEast().lat) {
+				if (lng - 360 * Math.floor((lng - west) / 360) <= east) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static int report(String what, double lat, double lng, boolean expected) {
+		System.out.println("MISMATCH " + what + " " + lat + "," + lng + " should be " + (expected ? "in" : "out"));
+		return 1;
+	}
+}
@@ -0,0 +1,75 @@
+package com.nuride.map;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Vertices per second through each operation of the coordinate kernels, on the
+ * 100,000 fix GPS trace fixture. The forked JVM is given the Vector API, so
+ * VECTOR measures the SIMD kernel; SCALAR measures the fallback. VECTOR fails
+ * unless the benchmarks were built with the optional vector sources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class KernelBenchmark {
+
+	private static final int VERTICES = 100000;
+
+	@Param({"SCALAR", "VECTOR"})
+	public String kernel;
+
+	private CoordinateKernel coordinates;
+	private double[] lats;
+	private double[] lngs;
+	private final double[] bounds = new double[4];
+	private final double[] out = new double[VERTICES];
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		double[][] trace = RouteFixture.GPS_TRACE.coordinates();
+		lats = trace[0];
+		lngs = trace[1];
+		coordinates = kernel.equals("VECTOR") ? CoordinateKernel.get() : new CoordinateKernel();
+		if (kernel.equals("VECTOR") && coordinates.getClass() == CoordinateKernel.class) {
+			throw new IllegalStateException("the Vector API is not available");
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VERTICES)
+	public double[] bounds() {
+		coordinates.bounds(lats, lngs, 0, VERTICES, bounds);
+		return bounds;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VERTICES)
+	public double[] radians() {
+		coordinates.radians(lngs, 0, VERTICES, out, 0);
+		return out;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VERTICES)
+	public double[] mercator() {
+		coordinates.mercator(lats, 0, VERTICES, out, 0);
+		return out;
+	}
+}
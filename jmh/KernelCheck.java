@@ -0,0 +1,82 @@
+package com.nuride.map;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Runs the coordinate kernel in use on random paths next to the scalar kernel,
+ * and exits with an error if they disagree. Bounds and radians must be the
+ * same to the bit. The Mercator projection goes through the Vector API's TAN
+ * and LOG, which are only specified to within an ulp of the exact result, as
+ * Math.tan and Math.log are, so the two kernels may round differently, each
+ * by up to an ulp in the tangent and another in the logarithm. A projection
+ * passes if it is within MERCATOR_ULPS ulps of one radian of the scalar one,
+ * or of the projection itself where that is larger. Near the
+ * equator the projection is close to zero, and an ulp of the tangent there is
+ * many ulps of its logarithm, hence the floor at one radian. One latitude in
+ * fifty is NaN. Only checks the vector kernel when the benchmarks were built
+ * with -Pvector and run with --add-modules jdk.incubator.vector; otherwise it
+ * compares the scalar kernel with itself. Takes the number of paths, 2000 by
+ * default.
+ */
+public class KernelCheck {
+
+	private static final int MERCATOR_ULPS = 4;
+
+	public static void main(String[] args) {
+		int paths = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		CoordinateKernel kernel = CoordinateKernel.get();
+		CoordinateKernel scalar = new CoordinateKernel();
+		Random random = new Random(23);
+		int mismatches = 0;
+		long projections = 0, rounded = 0;
+		for (int p = 0; p < paths; p++) {
+			// Paths start at any offset, and run long enough to fill whole vectors
+			//  and leave a tail
+			int start = random.nextInt(5);
+			int end = start + 1 + random.nextInt(300);
+			double[] lats = new double[end + 3], lngs = new double[end + 3];
+			for (int i = 0; i < lats.length; i++) {
+				lats[i] = random.nextInt(50) == 0 ? Double.NaN : -85 + 170 * random.nextDouble();
+				lngs[i] = -180 + 360 * random.nextDouble();
+			}
+			// The bounds start from the first vertex, which must not be NaN
+			lats[start] = 85 * random.nextDouble();
+
+			double[] expected = new double[4], actual = new double[4];
+			scalar.bounds(lats, lngs, start, end, expected);
+			kernel.bounds(lats, lngs, start, end, actual);
+			boolean same = Arrays.equals(expected, actual);
+
+			expected = new double[end - start + 2];
+			actual = new double[end - start + 2];
+			scalar.radians(lngs, start, end, expected, 1);
+			kernel.radians(lngs, start, end, actual, 1);
+			same &= Arrays.equals(expected, actual);
+
+			scalar.mercator(lats, start, end, expected, 1);
+			kernel.mercator(lats, start, end, actual, 1);
+			for (int i = 0; i < expected.length; i++) {
+				if (Double.isNaN(expected[i]) || Double.isNaN(actual[i])) {
+					same &= Double.isNaN(expected[i]) == Double.isNaN(actual[i]);
+					continue;
+				}
+				double tolerance = MERCATOR_ULPS * Math.ulp(Math.max(1, Math.abs(expected[i])));
+				same &= Math.abs(actual[i] - expected[i]) <= tolerance;
+				projections++;
+				if (actual[i] != expected[i]) {
+					rounded++;
+				}
+			}
+			if (!same && ++mismatches <= 10) {
+				System.out.println("MISMATCH path " + p + " of " + (end - start) + " vertices from " + start);
+			}
+		}
+		System.out.println(mismatches + " of " + paths + " paths differ between " + kernel + " and the scalar kernel; "
+				+ rounded + " of " + projections + " Mercator projections round differently, within " + MERCATOR_ULPS
+				+ " ulps");
+		if (mismatches > 0) {
+			System.exit(1);
+		}
+	}
+}
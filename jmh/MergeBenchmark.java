@@ -0,0 +1,80 @@
+package com.nuride.map;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nuride.map.RouteBoxer.MergeStrategy;
+
+/**
+ * Time per call of the merge phase for each merge strategy. The grid is traced
+ * once per trial, so only the merge is timed. After each trial the number of
+ * boxes the strategy returns is printed next to the number GREEDY returns for
+ * the same grid, so that COVER and STACKED can be weighed as boxes saved
+ * against the merge time their scores add over GREEDY's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeBenchmark {
+
+	@Param({"URBAN", "HIGHWAY", "GPS_TRACE", "ANTIMERIDIAN", "HIGH_LATITUDE"})
+	public RouteFixture fixture;
+
+	@Param({"0.5", "2", "10"})
+	public double range;
+
+	@Param({"GREEDY", "STACKED", "COVER"})
+	public MergeStrategy strategy;
+
+	private final RouteBoxer boxer = new RouteBoxer();
+	private final BoxContext ctx = new BoxContext();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		double[][] coordinates = fixture.coordinates();
+		RouteBoxer.findBounds_(ctx, coordinates[0], coordinates[1], 0, coordinates[0].length);
+		boxer.buildGrid_(ctx, range);
+		boxer.findIntersectingCells_(ctx, coordinates[0], coordinates[1], 0, coordinates[0].length);
+	}
+
+	@TearDown(Level.Trial)
+	public void report() {
+		int boxes = merge(strategy).boxes().size();
+		int greedy = merge(MergeStrategy.GREEDY).boxes().size();
+		System.out.printf("%n%s at %s km: %d boxes with %s, %d with GREEDY (%+.1f%%)%n", fixture, range, boxes, strategy,
+				greedy, 100.0 * (boxes - greedy) / greedy);
+	}
+
+	@Benchmark
+	public BoxContext merge() {
+		return merge(strategy);
+	}
+
+	private BoxContext merge(MergeStrategy strategy) {
+		ctx.clearBoxes();
+		if (strategy == MergeStrategy.STACKED) {
+			boxer.mergeSpans_(ctx);
+		} else if (strategy == MergeStrategy.COVER) {
+			boxer.mergeCover_(ctx);
+		} else {
+			boxer.mergeIntersectingCells_(ctx);
+		}
+		return ctx;
+	}
+}
@@ -0,0 +1,116 @@
+package com.nuride.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.nuride.map.RouteBoxer.GridMode;
+
+/**
+ * Compares the boxes the greedy merge builds a word of cells at a time with
+ * those of the merge it replaced, which walked the grid a cell at a time and
+ * scanned every box found so far for one to extend, on random routes at
+ * random ranges over dense and sparse grids. Exits with an error if any route
+ * differs. Takes the number of routes, 1000 by default.
+ */
+public class MergeScanCheck {
+
+	// As RouteBoxer.DOUBLE_FUDGE, the tolerance of the scan's comparison
+	private static final double DOUBLE_FUDGE = 0.000000;
+
+	public static void main(String[] args) {
+		int routes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		Random random = new Random(4);
+		RouteBoxer boxer = new RouteBoxer();
+		BoxContext ctx = new BoxContext();
+		int mismatches = 0;
+		long boxes = 0;
+		for (int r = 0; r < routes; r++) {
+			double[][] route = RouteFixture.walk(random, new double[] {0.001, 0.01, 0.05}[r % 3]);
+			double range = 0.2 + 5 * random.nextDouble();
+			boxer.setGridMode(r % 2 == 0 ? GridMode.DENSE : GridMode.SPARSE);
+			RouteBoxer.findBounds_(ctx, route[0], route[1], 0, route[0].length);
+			boxer.buildGrid_(ctx, range);
+			boxer.findIntersectingCells_(ctx, route[0], route[1], 0, route[0].length);
+			ctx.clearBoxes();
+			boxer.mergeIntersectingCells_(ctx);
+			boxes += ctx.boxesX_.size() + ctx.boxesY_.size();
+
+			if (!Arrays.equals(packed(ctx.boxesY_), scan(ctx, false))
+					|| !Arrays.equals(packed(ctx.boxesX_), scan(ctx, true))) {
+				if (++mismatches <= 10) {
+					System.out.println("MISMATCH route " + r + " of " + route[0].length + " vertices at range " + range);
+				}
+			}
+		}
+		System.out.println(mismatches + " of " + routes + " routes, with " + boxes
+				+ " boxes between them, differ from the scanning merge");
+		if (mismatches > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static double[] packed(BoxContext.Boxes boxes) {
+		return Arrays.copyOf(boxes.coords_, 4 * boxes.size());
+	}
+
+	/**
+	 * Merge the marked cells of the grid as the original code did, a row at a
+	 * time or a column at a time, skipping the cells of the last row and column,
+	 * which have no grid line beyond them
+	 *
+	 * @return the boxes as south, west, north, east
+	 */
+	private static double[] scan(BoxContext ctx, boolean byColumn) {
+		CellGrid grid = ctx.grid_;
+		int lines = byColumn ? grid.width() : grid.height();
+		int cells = byColumn ? grid.height() : grid.width();
+		List<double[]> boxes = new ArrayList<double[]>();
+		for (int line = 0; line < lines; line++) {
+			double[] box = null;
+			for (int cell = 0; cell < cells; cell++) {
+				int x = byColumn ? line : cell, y = byColumn ? cell : line;
+				if (!grid.isMarked(x, y)) {
+					merge(boxes, box);
+					box = null;
+				} else if (x < grid.width() - 1 && y < grid.height() - 1) {
+					double[] bounds = {ctx.latGrid_[y], ctx.lngGrid_[x], ctx.latGrid_[y + 1], ctx.lngGrid_[x + 1]};
+					if (box == null) {
+						box = bounds;
+					} else {
+						box[2] = Math.max(box[2], bounds[2]);
+						box[3] = Math.max(box[3], bounds[3]);
+					}
+				}
+			}
+			merge(boxes, box);
+		}
+		double[] packed = new double[4 * boxes.size()];
+		for (int i = 0; i < boxes.size(); i++) {
+			System.arraycopy(boxes.get(i), 0, packed, 4 * i, 4);
+		}
+		return packed;
+	}
+
+	/**
+	 * Extend a box found so far with the same bounds as the given one, or add it
+	 */
+	private static void merge(List<double[]> boxes, double[] box) {
+		if (box == null) {
+			return;
+		}
+		for (double[] other : boxes) {
+			boolean same = true;
+			for (int k = 0; k < 4; k++) {
+				same &= Math.abs(other[k] - box[k]) < DOUBLE_FUDGE;
+			}
+			if (same) {
+				other[2] = Math.max(other[2], box[2]);
+				other[3] = Math.max(other[3], box[3]);
+				return;
+			}
+		}
+		boxes.add(box);
+	}
+}
@@ -0,0 +1,73 @@
+package com.nuride.map;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time per call of each phase of box() on its own: laying the grid over the
+ * route, tracing the route over the grid, and merging the marked cells into
+ * boxes. Each phase starts from the state the previous phases leave behind,
+ * which is set up once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PhaseBenchmark {
+
+	@Param({"URBAN", "HIGHWAY", "GPS_TRACE", "ANTIMERIDIAN", "HIGH_LATITUDE"})
+	public RouteFixture fixture;
+
+	@Param({"0.5", "2", "10"})
+	public double range;
+
+	private final RouteBoxer boxer = new RouteBoxer();
+	private final BoxContext ctx = new BoxContext();
+	private double[] lats;
+	private double[] lngs;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		double[][] coordinates = fixture.coordinates();
+		lats = coordinates[0];
+		lngs = coordinates[1];
+		RouteBoxer.findBounds_(ctx, lats, lngs, 0, lats.length);
+		boxer.buildGrid_(ctx, range);
+		boxer.findIntersectingCells_(ctx, lats, lngs, 0, lats.length);
+	}
+
+	@Benchmark
+	public BoxContext buildGrid() {
+		RouteBoxer.findBounds_(ctx, lats, lngs, 0, lats.length);
+		boxer.buildGrid_(ctx, range);
+		return ctx;
+	}
+
+	@Benchmark
+	public BoxContext findIntersectingCells() {
+		ctx.grid_.reset(ctx.grid_.width(), ctx.grid_.height());
+		boxer.findIntersectingCells_(ctx, lats, lngs, 0, lats.length);
+		return ctx;
+	}
+
+	@Benchmark
+	public BoxContext mergeIntersectingCells() {
+		ctx.clearBoxes();
+		boxer.mergeIntersectingCells_(ctx);
+		return ctx;
+	}
+}
@@ -0,0 +1,71 @@
+package com.nuride.map;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nuride.map.RouteBoxer.LatLngBounds;
+
+/**
+ * Time to box each fixture at several ranges, one call per range against a
+ * single multi-range call. 1, 3 and 8 km are all multiples of the smallest;
+ * 1, 2.5 and 4 km are not all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RangesBenchmark {
+
+	@Param({"URBAN", "HIGHWAY", "GPS_TRACE", "ANTIMERIDIAN", "HIGH_LATITUDE"})
+	public RouteFixture fixture;
+
+	@Param({"1,3,8", "1,2.5,4"})
+	public String ranges;
+
+	private final RouteBoxer boxer = new RouteBoxer();
+	private double[] lats;
+	private double[] lngs;
+	private double[] distances;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		double[][] coordinates = fixture.coordinates();
+		lats = coordinates[0];
+		lngs = coordinates[1];
+		String[] values = ranges.split(",");
+		distances = new double[values.length];
+		for (int i = 0; i < values.length; i++) {
+			distances[i] = Double.parseDouble(values[i]);
+		}
+	}
+
+	@Benchmark
+	public List<List<LatLngBounds>> separate() {
+		List<List<LatLngBounds>> results = new ArrayList<List<LatLngBounds>>(distances.length);
+		for (double range : distances) {
+			results.add(boxer.box(lats, lngs, range));
+		}
+		return results;
+	}
+
+	@Benchmark
+	public List<List<LatLngBounds>> multiRange() {
+		return boxer.box(lats, lngs, 0, lats.length, distances);
+	}
+}
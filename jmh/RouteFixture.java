@@ -0,0 +1,230 @@
+package com.nuride.map;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.nuride.map.RouteBoxer.LatLng;
+
+/**
+ * Generated routes for the benchmarks. Each fixture is built from a fixed seed,
+ * so every run boxes exactly the same vertices.
+ */
+public enum RouteFixture {
+
+	/**
+	 * A 2,000 vertex drive of about 15 km through a city street grid
+	 */
+	URBAN {
+		@Override
+		void generate(Random random, double[] lats, double[] lngs) {
+			double lat = 40.7128, lng = -74.0060;
+			int heading = 0;
+			for (int i = 0; i < lats.length; i++) {
+				// a turn every block or so, never straight back
+				if (random.nextInt(12) == 0) {
+					heading = (heading + (random.nextBoolean() ? 1 : 3)) & 3;
+				}
+				lat += (heading == 0 ? 1 : heading == 2 ? -1 : 0) * 0.00007;
+				lng += (heading == 1 ? 1 : heading == 3 ? -1 : 0) * 0.00009;
+				lats[i] = lat;
+				lngs[i] = lng;
+			}
+		}
+
+		@Override
+		int vertices() {
+			return 2000;
+		}
+	},
+
+	/**
+	 * A 2,000 km highway running diagonally from Madrid towards Berlin, gently
+	 * winding, with a vertex every 100 m or so
+	 */
+	HIGHWAY {
+		@Override
+		void generate(Random random, double[] lats, double[] lngs) {
+			line(random, lats, lngs, 40.4168, -3.7038, 52.5200, 13.4050, 0.02);
+		}
+
+		@Override
+		int vertices() {
+			return 20000;
+		}
+	},
+
+	/**
+	 * A 100,000 fix GPS trace of a long drive with a fix every second, each off by
+	 * a few metres of noise
+	 */
+	GPS_TRACE {
+		@Override
+		void generate(Random random, double[] lats, double[] lngs) {
+			double lat = 48.8566, lng = 2.3522, heading = random.nextDouble() * 2 * Math.PI;
+			for (int i = 0; i < lats.length; i++) {
+				heading += random.nextGaussian() * 0.05;
+				lat += 0.00015 * Math.cos(heading);
+				lng += 0.00022 * Math.sin(heading);
+				lats[i] = lat + random.nextGaussian() * 0.00004;
+				lngs[i] = lng + random.nextGaussian() * 0.00006;
+			}
+		}
+
+		@Override
+		int vertices() {
+			return 100000;
+		}
+	},
+
+	/**
+	 * A 200 km route across Fiji that runs up to within a few kms of the
+	 * antimeridian without crossing it
+	 */
+	ANTIMERIDIAN {
+		@Override
+		void generate(Random random, double[] lats, double[] lngs) {
+			line(random, lats, lngs, -17.7765, 178.2000, -16.5000, 179.9500, 0.01);
+		}
+
+		@Override
+		int vertices() {
+			return 2000;
+		}
+	},
+
+	/**
+	 * A 250 km route above the arctic circle, from Tromsø to Hammerfest, where
+	 * a degree of longitude is under a third of its length at the equator
+	 */
+	HIGH_LATITUDE {
+		@Override
+		void generate(Random random, double[] lats, double[] lngs) {
+			line(random, lats, lngs, 69.6492, 18.9553, 70.6634, 23.6821, 0.01);
+		}
+
+		@Override
+		int vertices() {
+			return 2500;
+		}
+	},
+
+	/**
+	 * A flight plan of 50 legs zig-zagging 12 degrees north and south across
+	 * Europe, each leg crossing hundreds of cells between its ends
+	 */
+	LONG_SEGMENTS {
+		@Override
+		void generate(Random random, double[] lats, double[] lngs) {
+			for (int i = 0; i < lats.length; i++) {
+				lats[i] = 40 + (i % 2) * 12 + random.nextDouble() * 0.5;
+				lngs[i] = -5 + i * 0.4 + random.nextDouble() * 0.1;
+			}
+		}
+
+		@Override
+		int vertices() {
+			return 50;
+		}
+	};
+
+	abstract void generate(Random random, double[] lats, double[] lngs);
+
+	abstract int vertices();
+
+	/**
+	 * @return the latitudes in [0] and the longitudes in [1]
+	 */
+	public double[][] coordinates() {
+		double[][] coordinates = new double[2][vertices()];
+		generate(new Random(ordinal() + 1), coordinates[0], coordinates[1]);
+		return coordinates;
+	}
+
+	public List<LatLng> path() {
+		double[][] coordinates = coordinates();
+		List<LatLng> path = new ArrayList<LatLng>(coordinates[0].length);
+		for (int i = 0; i < coordinates[0].length; i++) {
+			path.add(new LatLng(coordinates[0][i], coordinates[1][i]));
+		}
+		return path;
+	}
+
+	/**
+	 * A random walk for the checks that compare two ways of boxing over many
+	 * routes: up to 400 vertices from a point between 60 degrees south and north,
+	 * turning as it goes, with steps of up to step degrees and now and then a
+	 * long jump or a repeated vertex. The walk turns back before 170 degrees east
+	 * or west, so it never nears the antimeridian.
+	 *
+	 * @return the latitudes in [0] and the longitudes in [1]
+	 */
+	static double[][] walk(Random random, double step) {
+		return walk(random, -60 + 120 * random.nextDouble(), -150 + 300 * random.nextDouble(), step, false);
+	}
+
+	/**
+	 * A random walk as above from a given point, which crosses the antimeridian
+	 * wherever it comes to it. Longitudes are wrapped into [-180, 180).
+	 */
+	static double[][] walk(Random random, double lat, double lng, double step) {
+		return walk(random, lat, lng, step, true);
+	}
+
+	/**
+	 * A random walk as above from a given point, which crosses the antimeridian
+	 * if wrap is true and otherwise turns back before 170 degrees east or west
+	 */
+	static double[][] walk(Random random, double lat, double lng, double step, boolean wrap) {
+		int n = 2 + random.nextInt(400);
+		double[][] coordinates = new double[2][n];
+		double heading = 2 * Math.PI * random.nextDouble();
+		for (int i = 0; i < n; i++) {
+			coordinates[0][i] = lat;
+			coordinates[1][i] = lng;
+			if (random.nextInt(30) == 0) {
+				continue;
+			}
+			heading += random.nextGaussian() / 2;
+			double length = step * (random.nextInt(20) == 0 ? 20 : random.nextDouble());
+			lat = Math.max(-80, Math.min(80, lat + Math.cos(heading) * length));
+			lng += Math.sin(heading) * length;
+			if (wrap) {
+				lng = lng >= 180 ? lng - 360 : lng < -180 ? lng + 360 : lng;
+			} else if (Math.abs(lng) > 170) {
+				lng = Math.signum(lng) * 340 - lng;
+				heading = -heading;
+			}
+		}
+		return coordinates;
+	}
+
+	/**
+	 * @return whether a step of a route goes more than half way round the world,
+	 *           as one that crosses the antimeridian does
+	 */
+	static boolean crosses(double[] lngs) {
+		for (int i = 1; i < lngs.length; i++) {
+			if (Math.abs(lngs[i] - lngs[i - 1]) > 180) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A straight line between two points bent by a slow random wander of up to
+	 * wander degrees
+	 */
+	private static void line(Random random, double[] lats, double[] lngs, double lat0, double lng0, double lat1, double lng1, double wander) {
+		double offLat = 0, offLng = 0;
+		int n = lats.length;
+		for (int i = 0; i < n; i++) {
+			double t = (double) i / (n - 1);
+			offLat = Math.max(-wander, Math.min(wander, offLat + random.nextGaussian() * wander / 20));
+			offLng = Math.max(-wander, Math.min(wander, offLng + random.nextGaussian() * wander / 20));
+			lats[i] = lat0 + (lat1 - lat0) * t + offLat;
+			lngs[i] = lng0 + (lng1 - lng0) * t + offLng;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.nuride.map;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nuride.map.RouteBoxer.LatLngBounds;
+
+/**
+ * Time per query of a RouteIndex holding many short drives across a city of
+ * about 100 by 100 km, for points and for areas of about 1 km square anywhere
+ * in the city.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouteIndexBenchmark {
+
+	@Param({"10000", "100000"})
+	public int routes;
+
+	@Param({"2"})
+	public double range;
+
+	private final RouteIndex<Integer> index = new RouteIndex<Integer>(0.05);
+	private final Random random = new Random(42);
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		RouteBoxer boxer = new RouteBoxer();
+		double[] lats = new double[100];
+		double[] lngs = new double[100];
+		for (int r = 0; r < routes; r++) {
+			double lat = 40.2 + random.nextDouble(), lng = -74.5 + random.nextDouble();
+			for (int i = 0; i < lats.length; i++) {
+				lat += (random.nextDouble() - 0.5) * 0.005;
+				lng += (random.nextDouble() - 0.5) * 0.005;
+				lats[i] = lat;
+				lngs[i] = lng;
+			}
+			List<LatLngBounds> boxes = boxer.box(lats, lngs, range);
+			index.put(r, boxes);
+		}
+	}
+
+	@Benchmark
+	public List<Integer> queryPoint() {
+		return index.query(40.2 + random.nextDouble(), -74.5 + random.nextDouble());
+	}
+
+	@Benchmark
+	public List<Integer> queryArea() {
+		double lat = 40.2 + random.nextDouble(), lng = -74.5 + random.nextDouble();
+		return index.query(lat, lng, lat + 0.01, lng + 0.01);
+	}
+}
@@ -0,0 +1,170 @@
+package com.nuride.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.nuride.map.RouteBoxer.LatLng;
+import com.nuride.map.RouteBoxer.LatLngBounds;
+
+/**
+ * Puts random routes into indexes, half of them up against the antimeridian
+ * with boxes that cross it, re-plans some and removes others, and exits with
+ * an error if a query of a point or an area finds other routes than a scan of
+ * every route's boxes does. The areas queried cross the antimeridian as well.
+ * Indexes are built with cells that divide the world evenly and with cells
+ * that do not. A route that has the same box twice, and loses one of them,
+ * must still be found in it. Takes the number of routes per index, 200 by
+ * default.
+ */
+public class RouteIndexCheck {
+
+	private static final double[] CELL_DEGREES = {0.1, 0.7};
+	private static final int QUERIES = 2000;
+
+	public static void main(String[] args) {
+		int routes = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		Random random = new Random(17);
+		RouteBoxer boxer = new RouteBoxer();
+		int mismatches = 0;
+		long queries = 0;
+
+		// A route with a box twice over that loses one of them
+		for (double cellDegrees : CELL_DEGREES) {
+			RouteIndex<Integer> index = new RouteIndex<Integer>(cellDegrees);
+			LatLngBounds box = new LatLngBounds(new LatLng(10, 20), new LatLng(10.5, 20.5));
+			LatLngBounds twin = new LatLngBounds(new LatLng(10, 20), new LatLng(10.5, 20.5));
+			index.put(0, Arrays.asList(box, twin));
+			index.update(0, new BoxDelta(Collections.singletonList(box), Collections.<LatLngBounds>emptyList(),
+					Collections.singletonList(twin)));
+			if (!index.query(10.25, 20.25).equals(Collections.singletonList(0)) && ++mismatches <= 10) {
+				System.out.println("MISMATCH cells of " + cellDegrees + ": a box kept once is gone");
+			}
+			queries++;
+		}
+
+		for (double cellDegrees : CELL_DEGREES) {
+			RouteIndex<Integer> index = new RouteIndex<Integer>(cellDegrees);
+			Map<Integer, List<LatLngBounds>> expected = new HashMap<Integer, List<LatLngBounds>>();
+			for (int r = 0; r < routes; r++) {
+				double[][] route = route(random, r);
+				int n = route[0].length;
+				RouteBoxer.Plan plan = boxer.plan(route[0], route[1], 0, n, 0.5 + 5 * random.nextDouble());
+				index.put(r, plan.getBoxes());
+				expected.put(r, plan.getBoxes());
+				if (r % 3 == 1 && n > 2) {
+					// A detour a little to the north of a stretch of the route
+					int from = 1 + random.nextInt(n - 2), to = Math.min(n - 1, from + 1 + random.nextInt(20));
+					double[] lats = new double[to - from], lngs = new double[to - from];
+					for (int i = from; i < to; i++) {
+						lats[i - from] = route[0][i] + 0.2 * random.nextDouble();
+						lngs[i - from] = route[1][i];
+					}
+					BoxDelta delta = plan.replace(from, to, lats, lngs, 0, to - from);
+					index.update(r, delta);
+					expected.put(r, delta.getBoxes());
+				}
+				if (r % 10 == 9) {
+					index.remove(r - 5);
+					expected.remove(r - 5);
+				}
+			}
+
+			// Few boxes cross the antimeridian, so every other query is about one
+			List<Integer> ids = new ArrayList<Integer>(expected.keySet());
+			List<LatLngBounds> crossing = new ArrayList<LatLngBounds>();
+			for (List<LatLngBounds> boxes : expected.values()) {
+				for (LatLngBounds box : boxes) {
+					if (wrap(box.getNorthEast().lng) < wrap(box.getSouthWest().lng)) {
+						crossing.add(box);
+					}
+				}
+			}
+			for (int q = 0; q < QUERIES; q++) {
+				List<LatLngBounds> boxes = q % 2 == 0 && !crossing.isEmpty() ? crossing
+						: expected.get(ids.get(random.nextInt(ids.size())));
+				LatLngBounds box = boxes.get(random.nextInt(boxes.size()));
+				double south = box.getSouthWest().lat, north = box.getNorthEast().lat;
+				double west = box.getSouthWest().lng, east = box.getNorthEast().lng;
+				double width = east < west ? east + 360 - west : east - west;
+
+				// A point in or around the box, or on its edge, and an area about it
+				double lat = q % 4 < 2 ? south + (north - south) * (3 * random.nextDouble() - 1)
+						: random.nextBoolean() ? south : north;
+				double lng = wrap(q % 8 < 4 ? west + width * (3 * random.nextDouble() - 1)
+						: random.nextBoolean() ? west : east);
+				double areaWest = wrap(lng - 2 * width * random.nextDouble());
+				double areaEast = wrap(lng + 2 * width * random.nextDouble());
+				double areaSouth = lat - (north - south) * random.nextDouble();
+				double areaNorth = lat + (north - south) * random.nextDouble();
+
+				List<Integer> point = new ArrayList<Integer>(), area = new ArrayList<Integer>();
+				for (Map.Entry<Integer, List<LatLngBounds>> entry : expected.entrySet()) {
+					for (LatLngBounds b : entry.getValue()) {
+						if (lat >= b.getSouthWest().lat && lat <= b.getNorthEast().lat
+								&& within(lng, b.getSouthWest().lng, b.getNorthEast().lng)) {
+							point.add(entry.getKey());
+							break;
+						}
+					}
+					for (LatLngBounds b : entry.getValue()) {
+						if (areaNorth >= b.getSouthWest().lat && areaSouth <= b.getNorthEast().lat
+								&& (within(areaWest, b.getSouthWest().lng, b.getNorthEast().lng)
+										|| within(b.getSouthWest().lng, areaWest, areaEast))) {
+							area.add(entry.getKey());
+							break;
+						}
+					}
+				}
+				if (!sorted(index.query(lat, lng)).equals(sorted(point)) && ++mismatches <= 10) {
+					System.out.println("MISMATCH cells of " + cellDegrees + " at " + lat + "," + lng);
+				}
+				if (!sorted(index.query(areaSouth, areaWest, areaNorth, areaEast)).equals(sorted(area)) && ++mismatches <= 10) {
+					System.out.println("MISMATCH cells of " + cellDegrees + " in " + areaSouth + "," + areaWest
+							+ " to " + areaNorth + "," + areaEast);
+				}
+				queries += 2;
+			}
+		}
+		System.out.println(mismatches + " of " + queries + " queries differ from a scan of the routes");
+		if (mismatches > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return a walk up against the antimeridian for even r and anywhere else
+	 *           for odd r, which does not cross it, since the bounds of a route
+	 *           that does are taken to span the world
+	 */
+	private static double[][] route(Random random, int r) {
+		double[][] route;
+		do {
+			double lng = r % 2 == 0 ? 175 + 10 * random.nextDouble() : -150 + 300 * random.nextDouble();
+			route = RouteFixture.walk(random, -60 + 120 * random.nextDouble(), wrap(lng), 0.05, true);
+		} while (RouteFixture.crosses(route[1]));
+		return route;
+	}
+
+	/**
+	 * @return whether a longitude lies from west to east, edges included, going
+	 *           east across the antimeridian if need be
+	 */
+	private static boolean within(double lng, double west, double east) {
+		return lng - 360 * Math.floor((lng - west) / 360) <= (east < west ? east + 360 : east);
+	}
+
+	private static double wrap(double lng) {
+		return lng - 360 * Math.floor((lng + 180) / 360);
+	}
+
+	private static List<Integer> sorted(List<Integer> ids) {
+		List<Integer> sorted = new ArrayList<Integer>(ids);
+		Collections.sort(sorted);
+		return sorted;
+	}
+}
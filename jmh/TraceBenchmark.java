@@ -0,0 +1,62 @@
+package com.nuride.map;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nuride.map.RouteBoxer.TraceEngine;
+
+/**
+ * Time per call of tracing a route over its grid with each trace engine. The
+ * difference shows on routes whose segments cross many lines of latitude.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraceBenchmark {
+
+	@Param({"LONG_SEGMENTS", "HIGHWAY", "GPS_TRACE"})
+	public RouteFixture fixture;
+
+	@Param({"0.5", "2"})
+	public double range;
+
+	@Param({"RHUMB", "MERCATOR"})
+	public TraceEngine engine;
+
+	private final RouteBoxer boxer = new RouteBoxer();
+	private final BoxContext ctx = new BoxContext();
+	private double[] lats;
+	private double[] lngs;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		double[][] coordinates = fixture.coordinates();
+		lats = coordinates[0];
+		lngs = coordinates[1];
+		boxer.setTraceEngine(engine);
+		RouteBoxer.findBounds_(ctx, lats, lngs, 0, lats.length);
+		boxer.buildGrid_(ctx, range);
+	}
+
+	@Benchmark
+	public BoxContext findIntersectingCells() {
+		ctx.grid_.reset(ctx.grid_.width(), ctx.grid_.height());
+		boxer.findIntersectingCells_(ctx, lats, lngs, 0, lats.length);
+		return ctx;
+	}
+}
@@ -0,0 +1,68 @@
+package com.nuride.map;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.nuride.map.RouteBoxer.LatLngBounds;
+import com.nuride.map.RouteBoxer.TraceEngine;
+
+/**
+ * Boxes random routes, from dense walks to sparse waypoints with segments of
+ * hundreds of kilometres, with the Mercator trace engine and with the rhumb
+ * line engine, and exits with an error if any route gets different boxes.
+ * One route in ten wanders above 70 degrees north, where the grid lines are
+ * furthest apart in Mercator. The walks stay clear of the antimeridian: one
+ * that crossed it and went on most of the way round the world would get a grid
+ * that stops short of the crossing, and a segment leaving the grid is not
+ * traced the same way by both. The antimeridian fixture covers routes across
+ * it. Takes the number of routes, 1000 by default.
+ */
+public class TraceEngineCheck {
+
+	// Degrees per step of the walks, and the least and greatest range for each
+	private static final double[] STEPS = {0.01, 0.2, 2};
+	private static final double[] MIN_RANGES = {0.2, 1, 10};
+	private static final double[] MAX_RANGES = {5, 10, 60};
+
+	public static void main(String[] args) {
+		int routes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		Random random = new Random(19);
+		RouteBoxer rhumb = new RouteBoxer();
+		RouteBoxer mercator = new RouteBoxer();
+		mercator.setTraceEngine(TraceEngine.MERCATOR);
+		int mismatches = 0;
+		long boxes = 0;
+		for (int r = 0; r < routes; r++) {
+			int kind = r % STEPS.length;
+			double[][] route = r % 10 == 9
+					? RouteFixture.walk(random, 70 + 10 * random.nextDouble(), -150 + 300 * random.nextDouble(), STEPS[kind], false)
+					: RouteFixture.walk(random, STEPS[kind]);
+			double range = MIN_RANGES[kind] + (MAX_RANGES[kind] - MIN_RANGES[kind]) * random.nextDouble();
+			double[] expected = packed(rhumb.box(route[0], route[1], 0, route[0].length, range));
+			double[] actual = packed(mercator.box(route[0], route[1], 0, route[0].length, range));
+			boxes += expected.length / 4;
+			if (!Arrays.equals(expected, actual) && ++mismatches <= 10) {
+				System.out.println("MISMATCH route " + r + " of " + route[0].length + " vertices at range " + range
+						+ ": " + expected.length / 4 + " boxes rhumb, " + actual.length / 4 + " Mercator");
+			}
+		}
+		System.out.println(mismatches + " of " + routes + " routes, with " + boxes
+				+ " boxes between them, differ between the trace engines");
+		if (mismatches > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static double[] packed(List<LatLngBounds> boxes) {
+		double[] packed = new double[4 * boxes.size()];
+		int i = 0;
+		for (LatLngBounds bounds : boxes) {
+			packed[i++] = bounds.getSouthWest().lat;
+			packed[i++] = bounds.getSouthWest().lng;
+			packed[i++] = bounds.getNorthEast().lat;
+			packed[i++] = bounds.getNorthEast().lng;
+		}
+		return packed;
+	}
+}
@@ -0,0 +1,25 @@
+package com.nuride.map;
+
+/**
+ * Stand-in for the host project's class of the same name, which
+ * RouteBoxer.latLngToCoordinate() converts to, so that the sources can be
+ * built on their own. Projects that copy RouteBoxer in use their own.
+ */
+public class Coordinate {
+
+	private final double x_;
+	private final double y_;
+
+	public Coordinate(double x, double y) {
+		x_ = x;
+		y_ = y;
+	}
+
+	public double getX() {
+		return x_;
+	}
+
+	public double getY() {
+		return y_;
+	}
+}
@@ -0,0 +1,25 @@
+package com.nuride.map;
+
+/**
+ * Stand-in for the host project's class of the same name, which
+ * RouteBoxer.latLngBoundsToMapRectangle() converts to, so that the sources
+ * can be built on their own. Projects that copy RouteBoxer in use their own.
+ */
+public class MapRectangle {
+
+	private final Coordinate southWest_;
+	private final Coordinate northEast_;
+
+	public MapRectangle(Coordinate southWest, Coordinate northEast) {
+		southWest_ = southWest;
+		northEast_ = northEast;
+	}
+
+	public Coordinate getSouthWest() {
+		return southWest_;
+	}
+
+	public Coordinate getNorthEast() {
+		return northEast_;
+	}
+}
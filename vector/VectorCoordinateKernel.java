@@ -0,0 +1,82 @@
+package com.nuride.map;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link CoordinateKernel} that works a vector of lanes at a time with the
+ * incubating Vector API. Only ever loaded by {@link CoordinateKernel#get()},
+ * which falls back to the scalar kernel if this class cannot be loaded.
+ *
+ * This class compiles only on Java 16 or later with the incubator module
+ * added, so it is kept out of the main sources, which build without it. Add it
+ * by compiling it alongside them with
+ *
+ *   javac --add-modules jdk.incubator.vector ... vector/VectorCoordinateKernel.java
+ *
+ * and run with --add-modules jdk.incubator.vector for it to be used.
+ */
+final class VectorCoordinateKernel extends CoordinateKernel {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	void bounds(double[] lats, double[] lngs, int start, int end, double[] bounds) {
+		final int lanes = SPECIES.length();
+		if (end - start < 2 * lanes) {
+			super.bounds(lats, lngs, start, end, bounds);
+			return;
+		}
+		// Every lane starts from the first vertex, as the scalar kernel does
+		DoubleVector south = DoubleVector.broadcast(SPECIES, lats[start]), north = south;
+		DoubleVector west = DoubleVector.broadcast(SPECIES, lngs[start]), east = west;
+		int i = start;
+		for (int upper = start + SPECIES.loopBound(end - start); i < upper; i += lanes) {
+			DoubleVector lat = DoubleVector.fromArray(SPECIES, lats, i);
+			DoubleVector lng = DoubleVector.fromArray(SPECIES, lngs, i);
+			// Compare and blend rather than min and max, so that a NaN vertex is
+			//  passed over as it is by the scalar kernel
+			south = south.blend(lat, lat.compare(VectorOperators.LT, south));
+			north = north.blend(lat, lat.compare(VectorOperators.GT, north));
+			west = west.blend(lng, lng.compare(VectorOperators.LT, west));
+			east = east.blend(lng, lng.compare(VectorOperators.GT, east));
+		}
+		if (i < end) {
+			VectorMask<Double> tail = SPECIES.indexInRange(i, end);
+			DoubleVector lat = DoubleVector.fromArray(SPECIES, lats, i, tail);
+			DoubleVector lng = DoubleVector.fromArray(SPECIES, lngs, i, tail);
+			south = south.blend(lat, lat.compare(VectorOperators.LT, south).and(tail));
+			north = north.blend(lat, lat.compare(VectorOperators.GT, north).and(tail));
+			west = west.blend(lng, lng.compare(VectorOperators.LT, west).and(tail));
+			east = east.blend(lng, lng.compare(VectorOperators.GT, east).and(tail));
+		}
+		bounds[0] = south.reduceLanes(VectorOperators.MIN);
+		bounds[1] = north.reduceLanes(VectorOperators.MAX);
+		bounds[2] = west.reduceLanes(VectorOperators.MIN);
+		bounds[3] = east.reduceLanes(VectorOperators.MAX);
+	}
+
+	@Override
+	void radians(double[] degrees, int start, int end, double[] out, int offset) {
+		final int lanes = SPECIES.length();
+		int i = start;
+		for (int upper = start + SPECIES.loopBound(end - start); i < upper; i += lanes) {
+			// the same operations in the same order as RouteBoxer.toRad
+			DoubleVector.fromArray(SPECIES, degrees, i).mul(Math.PI).div(180).intoArray(out, offset + i - start);
+		}
+		super.radians(degrees, i, end, out, offset + i - start);
+	}
+
+	@Override
+	void mercator(double[] lats, int start, int end, double[] out, int offset) {
+		final int lanes = SPECIES.length();
+		int i = start;
+		for (int upper = start + SPECIES.loopBound(end - start); i < upper; i += lanes) {
+			DoubleVector.fromArray(SPECIES, lats, i).mul(Math.PI).div(180).div(2).add(Math.PI / 4)
+					.lanewise(VectorOperators.TAN).lanewise(VectorOperators.LOG).intoArray(out, offset + i - start);
+		}
+		super.mercator(lats, i, end, out, offset + i - start);
+	}
+}